@@ -51,6 +51,7 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapFragment;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.TileOverlay;
 import com.google.android.gms.maps.model.TileOverlayOptions;
 import hugo.weaving.DebugLog;
@@ -58,8 +59,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unchiujar.umbra2.R;
 import org.unchiujar.umbra2.backend.ExploredProvider;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
 import org.unchiujar.umbra2.overlays.CustomUrlProvider;
 import org.unchiujar.umbra2.overlays.ExploredTileProvider;
+import org.unchiujar.umbra2.overlays.RedrawScheduler;
+import org.unchiujar.umbra2.overlays.ViewportFeed;
 import org.unchiujar.umbra2.services.LocationService;
 import org.xml.sax.SAXException;
 
@@ -99,6 +104,15 @@ public class FogOfExplore extends ActionBarActivity {
      * Initial map zoom.
      */
     private static final int INITIAL_ZOOM = 17;
+    /**
+     * Margin around the visible region, as a fraction of the visible span, in which new points
+     * refresh the fog overlay. Covers the discs of points just outside the visible region.
+     */
+    private static final double REFRESH_MARGIN = 0.1d;
+    /**
+     * Default minimum time between two fog overlay refreshes, in milliseconds.
+     */
+    private static final String DEFAULT_REDRAW_INTERVAL = "250";
     /**
      * Constant used for saving the accuracy value between screen rotations.
      */
@@ -135,6 +149,25 @@ public class FogOfExplore extends ActionBarActivity {
      * Source for obtaining explored area information.
      */
     private ExploredProvider mRecorder;
+    /**
+     * Explored points around the visible region, fed to the fog overlay.
+     */
+    private ViewportFeed mFeed;
+    /**
+     * Visible region enlarged by {@link #REFRESH_MARGIN}, new points outside it do not refresh
+     * the fog overlay.
+     */
+    private volatile LatLngBounds mRefreshBounds;
+    /**
+     * Loads the explored points of the visible region in the background and refreshes the fog
+     * overlay, coalescing the camera changes and the newly explored points.
+     */
+    private RedrawScheduler mRedrawScheduler;
+    /**
+     * Explored points last set on the fog overlay and their count, used on the scheduler thread.
+     */
+    private PointStore mPreparedPoints;
+    private int mPreparedSize;
     /**
      * Current device latitude. Updated on every location change.
      */
@@ -210,6 +243,9 @@ public class FogOfExplore extends ActionBarActivity {
             LOGGER.debug("Settings changed {} key {}", sharedPreferences, key);
             mDrive = mSettings.getBoolean(DRIVE_MODE, false);
             mNotificationEnabled = mSettings.getBoolean(NOTIFICATION, true);
+            if (REDRAW_INTERVAL.equals(key)) {
+                mRedrawScheduler.setInterval(redrawInterval());
+            }
         }
     };
     private GoogleMap map;
@@ -218,13 +254,56 @@ public class FogOfExplore extends ActionBarActivity {
         @Override
         public void onCameraChange(CameraPosition cameraPosition) {
             //if we are only zooming in then do nothing, the topOverlay will be scaled automatically
-            updateExplored();
+            updateExplored(cameraPosition);
             wiggleLayers();
         }
     };
     private boolean overlaySwitch = false;
+    /**
+     * Refreshes the fog overlay when a newly explored point is in view. Points may be explored on
+     * other threads, for example when importing a file, the refreshes are coalesced by the redraw
+     * scheduler and run on the UI thread. The tiles changed by the point were already
+     * updated in the tile cache, the other tiles are served from the cache.
+     */
+    private PointVisitor mExploredListener = new PointVisitor() {
+        @Override
+        public void visit(int latitudeE7, int longitudeE7) {
+            LatLngBounds bounds = mRefreshBounds;
+            if (bounds == null || !bounds.contains(
+                    new LatLng(PointStore.fromE7(latitudeE7), PointStore.fromE7(longitudeE7)))) {
+                return;
+            }
+            mRedrawScheduler.refreshRequested();
+        }
+    };
+    private RedrawScheduler.Target mRedrawTarget = new RedrawScheduler.Target() {
+        @Override
+        public boolean prepare(double south, double west, double north, double east, int zoom) {
+            ExploredTileProvider explored = provider;
+            // read before loading, later visible regions are not loaded yet
+            int viewport = explored.getViewport();
+            // points are fetched only for the parts not loaded before
+            PointStore points = mFeed.update(south, west, north, east);
+            explored.setExplored(points, zoom, viewport);
+            boolean changed = points != mPreparedPoints || points.size() != mPreparedSize;
+            mPreparedPoints = points;
+            mPreparedSize = points.size();
+            // tiles not drawn while the points were loaded are requested again by a refresh
+            return explored.takeDeferred() || changed;
+        }
+
+        @Override
+        public void refresh() {
+            if (topOverlay != null) {
+                redrawOverlay();
+            }
+        }
+    };
     private TileOverlayOptions mapOverlay;
-    private ExploredTileProvider provider;
+    /**
+     * Fog overlay tile provider, also read on the redraw scheduler thread.
+     */
+    private volatile ExploredTileProvider provider;
 
     // ==================== LIFECYCLE METHODS ====================
     private TileOverlay topOverlay;
@@ -264,6 +343,9 @@ public class FogOfExplore extends ActionBarActivity {
         }
 
         mRecorder = ((UmbraApplication) getApplication()).getCache();
+        mFeed = ((UmbraApplication) getApplication()).getViewportFeed();
+        mRedrawScheduler = new RedrawScheduler(mRedrawTarget, redrawInterval());
+        ((UmbraApplication) getApplication()).getVisitedAreaCache().addInsertListener(mExploredListener);
         // check we still have access to GPS info
         checkConnectivity();
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -470,7 +552,8 @@ public class FogOfExplore extends ActionBarActivity {
         backOpts.zIndex(BACK);
         bottomOverlay = map.addTileOverlay(backOpts);
 
-        redrawOverlay();
+        // the tiles requested before the points are loaded are requested again by a refresh
+        updateExplored(map.getCameraPosition());
 
         // configure if the location service is already started
         if (mIsBound) {
@@ -527,6 +610,14 @@ public class FogOfExplore extends ActionBarActivity {
         LOGGER.debug("onPause completed.");
     }
 
+    @Override
+    protected void onDestroy() {
+        ((UmbraApplication) getApplication()).getVisitedAreaCache().removeInsertListener(mExploredListener);
+        mRedrawScheduler.destroy();
+        super.onDestroy();
+        LOGGER.debug("onDestroy completed.");
+    }
+
     @Override
     @DebugLog
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -577,11 +668,22 @@ public class FogOfExplore extends ActionBarActivity {
     }
 
     /**
-     * Updates the current location and calls an overlay redraw.
+     * @return the minimum time between two fog overlay refreshes set in the preferences, in
+     * milliseconds
      */
-    private void redrawOverlay() {
-        updateExplored();
+    private long redrawInterval() {
+        try {
+            return Long.parseLong(mSettings.getString(REDRAW_INTERVAL, DEFAULT_REDRAW_INTERVAL));
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid redraw interval", e);
+            return Long.parseLong(DEFAULT_REDRAW_INTERVAL);
+        }
+    }
 
+    /**
+     * Redraws the overlay with the explored points last set on it.
+     */
+    private void redrawOverlay() {
         if (!overlaySwitch) {
             bottomOverlay.setZIndex(FRONT);
             topOverlay.setZIndex(BACK);
@@ -609,20 +711,33 @@ public class FogOfExplore extends ActionBarActivity {
         }
     }
 
-    private void updateExplored() {
-        // get the coordinates of the visible area
-        LatLng farLeft = map.getProjection().getVisibleRegion().farLeft;
-        LatLng nearRight = map.getProjection().getVisibleRegion().nearRight;
-
-        // TODO - optimization get points for rectangle only if a zoom out
-        // or a pan action occurred - ie new points come into view
-
-        // update the overlay with the currently visible explored area
-//        OverlayFactory.getInstance(this).setExplored(mRecorder.selectVisited(upperLeft, bottomRight));
-
-//        provider.setExplored(mRecorder.selectVisited(upperLeft, bottomRight), (int) map.getCameraPosition().zoom);
-        provider.setExplored(mRecorder.selectAll(), (int) map.getCameraPosition().zoom);
+    /**
+     * Schedules loading the explored points around the visible area on the redraw scheduler
+     * thread, the overlay is refreshed once they are loaded.
+     */
+    private void updateExplored(CameraPosition cameraPosition) {
+        LatLngBounds visible = updateRefreshBounds();
+        provider.viewportChanged(cameraPosition.target, cameraPosition.zoom, visible);
+        mRedrawScheduler.viewportChanged(visible.southwest.latitude, visible.southwest.longitude,
+                visible.northeast.latitude, visible.northeast.longitude, (int) cameraPosition.zoom);
+    }
 
+    /**
+     * Updates the region in which new points refresh the overlay.
+     *
+     * @return the visible region
+     */
+    private LatLngBounds updateRefreshBounds() {
+        // get the coordinates of the visible area
+        LatLngBounds visible = map.getProjection().getVisibleRegion().latLngBounds;
+        double latitudeMargin = (visible.northeast.latitude - visible.southwest.latitude) * REFRESH_MARGIN;
+        double longitudeSpan = visible.northeast.longitude - visible.southwest.longitude;
+        // the visible region may cross the antimeridian
+        double longitudeMargin = (longitudeSpan < 0 ? longitudeSpan + 360 : longitudeSpan) * REFRESH_MARGIN;
+        mRefreshBounds = new LatLngBounds(
+                new LatLng(visible.southwest.latitude - latitudeMargin, visible.southwest.longitude - longitudeMargin),
+                new LatLng(visible.northeast.latitude + latitudeMargin, visible.northeast.longitude + longitudeMargin));
+        return visible;
     }
 
     /**
@@ -752,8 +867,8 @@ public class FogOfExplore extends ActionBarActivity {
                         mCurrentLat = ((Location) msg.obj).getLatitude();
                         mCurrentLong = ((Location) msg.obj).getLongitude();
                         mCurrentAccuracy = ((Location) msg.obj).getAccuracy();
-                        // redraw overlay
-                        redrawOverlay();
+                        // the overlay is redrawn only when the location explores a visible area,
+                        // see mExploredListener
 
                     }
                     break;
@@ -59,6 +59,10 @@ public class Preferences extends PreferenceActivity {
     public static final String IMPORT_DATA = "org.unchiujar.umbra.settings.import_data";
     public static final String FULLSCREEN = "org.unchiujar.umbra.settings.fullscreen";
     public static final String NOTIFICATION = "org.unchiujar.umbra.settings.notification";
+    public static final String TILE_ENCODING = "org.unchiujar.umbra.settings.tile_encoding";
+    public static final String HEATMAP = "org.unchiujar.umbra.settings.heatmap";
+    public static final String FOG_RENDERER = "org.unchiujar.umbra.settings.fog_renderer";
+    public static final String REDRAW_INTERVAL = "org.unchiujar.umbra.settings.redraw_interval";
 
     private static final int READ_REQUEST_CODE = 42;
     private static final Logger LOGGER = LoggerFactory.getLogger(Preferences.class);
@@ -29,15 +29,92 @@
 package org.unchiujar.umbra2.activities;
 
 import android.app.Application;
+import android.preference.PreferenceManager;
 import org.unchiujar.umbra2.backend.ExploredProvider;
 import org.unchiujar.umbra2.backend.VisitedAreaCache;
+import org.unchiujar.umbra2.overlays.CoverageIndex;
+import org.unchiujar.umbra2.overlays.DensityGrid;
+import org.unchiujar.umbra2.overlays.DiskTileCache;
+import org.unchiujar.umbra2.overlays.ExploredTileProvider;
+import org.unchiujar.umbra2.overlays.TileCache;
+import org.unchiujar.umbra2.overlays.TilePrerenderer;
+import org.unchiujar.umbra2.overlays.ViewportFeed;
 
 public class UmbraApplication extends Application {
     private ExploredProvider cache;
+    private VisitedAreaCache visitedAreaCache;
+    private TileCache tileCache;
+    private DiskTileCache diskTileCache;
+    private ViewportFeed viewportFeed;
+    private DensityGrid densityGrid;
+    private CoverageIndex coverageIndex;
+    private TilePrerenderer tilePrerenderer;
 
     @Override
     public void onCreate() {
-        cache = new VisitedAreaCache(this);
+        visitedAreaCache = new VisitedAreaCache(this);
+        cache = visitedAreaCache;
+        // the feed is notified first so tiles drawn after the caches are updated contain the point
+        viewportFeed = new ViewportFeed(visitedAreaCache);
+        visitedAreaCache.addInsertListener(viewportFeed);
+        // stored tiles are invalidated before the memory cache, which promotes the tiles read from
+        // the disk, is updated
+        diskTileCache = new DiskTileCache(this);
+        visitedAreaCache.addInsertListener(diskTileCache);
+        tileCache = new TileCache();
+        visitedAreaCache.addInsertListener(tileCache);
+        // the stored tiles are kept if they were rendered by the selected renderer
+        boolean distanceField = ExploredTileProvider.RENDERER_DISTANCE.equals(PreferenceManager
+                .getDefaultSharedPreferences(this).getString(Preferences.FOG_RENDERER,
+                        ExploredTileProvider.RENDERER_DISCS));
+        tileCache.setDistanceField(distanceField);
+        diskTileCache.setDistanceField(distanceField);
+        densityGrid = new DensityGrid(visitedAreaCache);
+        visitedAreaCache.addInsertListener(densityGrid);
+        coverageIndex = new CoverageIndex(visitedAreaCache);
+        visitedAreaCache.addInsertListener(coverageIndex);
+        tilePrerenderer = new TilePrerenderer(this, visitedAreaCache, tileCache, diskTileCache);
+        visitedAreaCache.addInsertListener(tilePrerenderer);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        tileCache.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        tileCache.trimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    public VisitedAreaCache getVisitedAreaCache() {
+        return visitedAreaCache;
+    }
+
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    public ViewportFeed getViewportFeed() {
+        return viewportFeed;
+    }
+
+    public DiskTileCache getDiskTileCache() {
+        return diskTileCache;
+    }
+
+    public DensityGrid getDensityGrid() {
+        return densityGrid;
+    }
+
+    public CoverageIndex getCoverageIndex() {
+        return coverageIndex;
+    }
+
+    public TilePrerenderer getTilePrerenderer() {
+        return tilePrerenderer;
     }
 
     public ExploredProvider getCache() {
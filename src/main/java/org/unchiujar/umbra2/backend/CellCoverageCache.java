@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.backend;
+
+import org.unchiujar.umbra2.location.ApproximateLocation;
+import org.unchiujar.umbra2.location.GeodesicGrid;
+import org.unchiujar.umbra2.utils.LongHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Explored provider storing explored cells instead of the points walked. Each location is snapped
+ * to its {@link GeodesicGrid} cell and only the packed cell key is kept, so inserting and checking
+ * a location is a constant time hash lookup without distance calculations.
+ * <p/>
+ * Locations returned by the select methods are the centers of the explored cells.
+ */
+public class CellCoverageCache implements ExploredProvider {
+    private static final String CELL_PROVIDER = "Cell";
+
+    private final LongHashSet mCells = new LongHashSet();
+
+    /**
+     * Marks the cell containing the coordinates as explored.
+     *
+     * @return true if the cell was not explored before
+     */
+    public synchronized boolean add(double latitude, double longitude) {
+        return mCells.add(GeodesicGrid.key(latitude, longitude));
+    }
+
+    public synchronized boolean contains(double latitude, double longitude) {
+        return mCells.contains(GeodesicGrid.key(latitude, longitude));
+    }
+
+    public synchronized int size() {
+        return mCells.size();
+    }
+
+    @Override
+    public synchronized long insert(ApproximateLocation location) {
+        add(location.getLatitude(), location.getLongitude());
+        return mCells.size();
+    }
+
+    @Override
+    public synchronized void insert(List<ApproximateLocation> locations) {
+        for (ApproximateLocation location : locations) {
+            add(location.getLatitude(), location.getLongitude());
+        }
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        mCells.clear();
+    }
+
+    @Override
+    public synchronized List<ApproximateLocation> selectAll() {
+        long[] keys = mCells.toArray();
+        List<ApproximateLocation> list = new ArrayList<ApproximateLocation>(keys.length);
+        for (long key : keys) {
+            list.add(toLocation(key));
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized void visitAll(PointVisitor visitor) {
+        for (long key : mCells.toArray()) {
+            visitor.visit(PointStore.toE7(GeodesicGrid.centerLatitude(key)),
+                    PointStore.toE7(GeodesicGrid.centerLongitude(key)));
+        }
+    }
+
+    @Override
+    public synchronized List<ApproximateLocation> selectVisited(ApproximateLocation upperLeft,
+                                                                ApproximateLocation lowerRight) {
+        List<ApproximateLocation> list = new ArrayList<ApproximateLocation>();
+        for (long key : mCells.toArray()) {
+            double latitude = GeodesicGrid.centerLatitude(key);
+            double longitude = GeodesicGrid.centerLongitude(key);
+            if (latitude <= upperLeft.getLatitude() && latitude >= lowerRight.getLatitude()
+                    && longitude >= upperLeft.getLongitude()
+                    && longitude <= lowerRight.getLongitude()) {
+                list.add(toLocation(key));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized void visitVisited(int southE7, int westE7, int northE7, int eastE7,
+                                          PointVisitor visitor) {
+        for (long key : mCells.toArray()) {
+            int latitude = PointStore.toE7(GeodesicGrid.centerLatitude(key));
+            int longitude = PointStore.toE7(GeodesicGrid.centerLongitude(key));
+            if (latitude >= southE7 && latitude <= northE7
+                    && longitude >= westE7 && longitude <= eastE7) {
+                visitor.visit(latitude, longitude);
+            }
+        }
+    }
+
+    private static ApproximateLocation toLocation(long key) {
+        ApproximateLocation location = new ApproximateLocation(CELL_PROVIDER);
+        location.setLatitude(GeodesicGrid.centerLatitude(key));
+        location.setLongitude(GeodesicGrid.centerLongitude(key));
+        return location;
+    }
+
+    @Override
+    public void destroy() {
+        // NO-OP, nothing is persisted
+    }
+}
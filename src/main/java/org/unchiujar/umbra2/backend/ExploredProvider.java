@@ -42,6 +42,13 @@ public interface ExploredProvider {
 
     List<ApproximateLocation> selectAll();
 
+    /**
+     * Visits all visited points without creating location objects for them.
+     *
+     * @param visitor receives the coordinates of each point
+     */
+    void visitAll(PointVisitor visitor);
+
     /**
      * Returns a list of visited points in the specified area. The coordinate system used is the
      * latitude longitude decimal system.
@@ -53,5 +60,17 @@ public interface ExploredProvider {
     List<ApproximateLocation> selectVisited(ApproximateLocation upperLeft,
                                             ApproximateLocation bottomRight);
 
+    /**
+     * Visits the visited points in the specified area without creating location objects for them.
+     * Coordinates are latitude and longitude in 1e-7 degree units, the bounds are included.
+     *
+     * @param southE7 the minimum latitude
+     * @param westE7  the minimum longitude
+     * @param northE7 the maximum latitude
+     * @param eastE7  the maximum longitude
+     * @param visitor receives the coordinates of each point
+     */
+    void visitVisited(int southE7, int westE7, int northE7, int eastE7, PointVisitor visitor);
+
     void destroy();
 }
@@ -33,6 +33,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
@@ -50,17 +51,52 @@ public class LocationRecorder implements ExploredProvider {
      * The version number for the database used by SQLiteOpenHelper when for database upgrades.
      * Increment when database structure is modified.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String TABLE_NAME = "coordinates";
+    private static final String ID = "id";
     private static final String LONGITUDE = "longitude";
     private static final String LATITUDE = "latitude";
 
+    /**
+     * R*Tree virtual table mirroring the {@link #TABLE_NAME} rows as degenerate (point) boxes. It
+     * is kept in sync by the insert and delete triggers created in {@link OpenHelper}.
+     */
+    private static final String INDEX_TABLE_NAME = "coordinates_index";
+    private static final String MIN_LATITUDE = "min_latitude";
+    private static final String MAX_LATITUDE = "max_latitude";
+    private static final String MIN_LONGITUDE = "min_longitude";
+    private static final String MAX_LONGITUDE = "max_longitude";
+    /**
+     * Plain B-tree index used only when the platform SQLite was built without the R*Tree module.
+     */
+    private static final String FALLBACK_INDEX_NAME = "coordinates_position";
+
     private static final String DATABASE_PROVIDER = "Visited";
 
     private static final String INSERT = "insert into " + TABLE_NAME + "("
             + LATITUDE + "," + LONGITUDE + ") values (?,?)";
+
+    /**
+     * Bounding box query through the R*Tree. The R*Tree stores 32 bit floats rounded outwards so
+     * the exact coordinates are filtered again on the joined table.
+     */
+    private static final String SELECT_VISITED_INDEXED = "SELECT c." + LATITUDE + ", c." + LONGITUDE
+            + " FROM " + TABLE_NAME + " c, " + INDEX_TABLE_NAME + " i WHERE c." + ID + " = i." + ID
+            + " AND i." + MAX_LATITUDE + " >= ? AND i." + MIN_LATITUDE + " <= ?"
+            + " AND i." + MAX_LONGITUDE + " >= ? AND i." + MIN_LONGITUDE + " <= ?"
+            + " AND c." + LATITUDE + " BETWEEN ? AND ?"
+            + " AND c." + LONGITUDE + " BETWEEN ? AND ?";
+
+    private static final String SELECT_VISITED_PLAIN = "SELECT " + LATITUDE + ", " + LONGITUDE
+            + " FROM " + TABLE_NAME + " WHERE " + LATITUDE + " BETWEEN ? AND ?"
+            + " AND " + LONGITUDE + " BETWEEN ? AND ?";
+
     private SQLiteDatabase mDatabase;
     private SQLiteStatement mInsertStmt;
+    /**
+     * Flag signaling that the R*Tree index table is available for bounding box queries.
+     */
+    private boolean mSpatialIndex;
 
     public LocationRecorder(Context context) {
         OpenHelper openHelper = new OpenHelper(context);
@@ -68,11 +104,14 @@ public class LocationRecorder implements ExploredProvider {
         // this.db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
         // openHelper.onCreate(mDatabase);
         this.mInsertStmt = this.mDatabase.compileStatement(INSERT);
-
+        this.mSpatialIndex = DatabaseUtils.longForQuery(mDatabase,
+                "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{INDEX_TABLE_NAME}) > 0;
+        Log.d(TAG, "Spatial index available: " + mSpatialIndex);
     }
 
     @Override
-    public long insert(ApproximateLocation location) {
+    public synchronized long insert(ApproximateLocation location) {
 
         this.mInsertStmt.bindDouble(1, location.getLatitude());
         this.mInsertStmt.bindDouble(2, location.getLongitude());
@@ -86,26 +125,43 @@ public class LocationRecorder implements ExploredProvider {
         return index;
     }
 
-    public void insert(List<ApproximateLocation> locations) {
-        // TODO test batch insert speed
-        DatabaseUtils.InsertHelper batchInserter = new DatabaseUtils.InsertHelper(
-                mDatabase, TABLE_NAME);
-        int latitudeIndex = batchInserter.getColumnIndex(LATITUDE);
-        int longitudeIndex = batchInserter.getColumnIndex(LONGITUDE);
-
-        for (ApproximateLocation approximateLocation : locations) {
-            batchInserter.prepareForInsert();
-            batchInserter.bind(latitudeIndex, approximateLocation.getLatitude());
-            batchInserter.bind(longitudeIndex,
-                    approximateLocation.getLongitude());
-            batchInserter.execute();
-            Log.d(TAG,
-                    "Batch inserted latitude and longitude: "
-                            + numberLogList(approximateLocation.getLatitude(),
-                            approximateLocation.getLongitude()));
-
-        }
-        batchInserter.close();
+    /**
+     * Inserts the locations in a single transaction reusing the compiled insert statement.
+     */
+    public synchronized void insert(List<ApproximateLocation> locations) {
+        mDatabase.beginTransaction();
+        try {
+            for (ApproximateLocation approximateLocation : locations) {
+                mInsertStmt.bindDouble(1, approximateLocation.getLatitude());
+                mInsertStmt.bindDouble(2, approximateLocation.getLongitude());
+                mInsertStmt.executeInsert();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        Log.d(TAG, "Batch inserted " + locations.size() + " locations");
+    }
+
+    /**
+     * Inserts the points in a single transaction reusing the compiled insert statement.
+     */
+    public synchronized void insert(PointStore points) {
+        mDatabase.beginTransaction();
+        try {
+            points.forEach(new PointVisitor() {
+                @Override
+                public void visit(int latitudeE7, int longitudeE7) {
+                    mInsertStmt.bindDouble(1, PointStore.fromE7(latitudeE7));
+                    mInsertStmt.bindDouble(2, PointStore.fromE7(longitudeE7));
+                    mInsertStmt.executeInsert();
+                }
+            });
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        Log.d(TAG, "Batch inserted " + points.size() + " points");
     }
 
     @Override
@@ -137,26 +193,34 @@ public class LocationRecorder implements ExploredProvider {
         return list;
     }
 
+    @Override
+    public void visitAll(PointVisitor visitor) {
+        Cursor cursor = this.mDatabase.query(TABLE_NAME, new String[]{
+                LATITUDE, LONGITUDE
+        }, null, null, null, null, null);
+        Log.d(TAG, "Results obtained: " + cursor.getCount());
+        if (cursor.moveToFirst()) {
+            do {
+                visitor.visit(PointStore.toE7(cursor.getDouble(0)),
+                        PointStore.toE7(cursor.getDouble(1)));
+            } while (cursor.moveToNext());
+        }
+        if (!cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
     @Override
     public List<ApproximateLocation> selectVisited(
             ApproximateLocation upperLeft, ApproximateLocation lowerRight) {
 
         List<ApproximateLocation> list = new ArrayList<ApproximateLocation>();
-        double longitudeMin = upperLeft.getLongitude();
-        double latitudeMax = upperLeft.getLatitude();
-        double longitudeMax = lowerRight.getLongitude();
-        double latitudeMin = lowerRight.getLatitude();
+        String longitudeMin = String.valueOf(upperLeft.getLongitude());
+        String latitudeMax = String.valueOf(upperLeft.getLatitude());
+        String longitudeMax = String.valueOf(lowerRight.getLongitude());
+        String latitudeMin = String.valueOf(lowerRight.getLatitude());
 
-        String condition = LONGITUDE + " >= " + longitudeMin + " AND "
-                + LONGITUDE + " <= " + longitudeMax + " AND " + LATITUDE
-                + " >= " + latitudeMin + " AND " + LATITUDE + " <= "
-                + latitudeMax;
-
-        Log.v(TAG, "Select condition is " + condition);
-        Cursor cursor = this.mDatabase.query(TABLE_NAME, new String[]{
-                LATITUDE, LONGITUDE
-        }, condition, null, null, null, LATITUDE
-                + " desc");
+        Cursor cursor = queryVisited(latitudeMin, latitudeMax, longitudeMin, longitudeMax);
         Log.d(TAG, "Results obtained: " + cursor.getCount());
         if (cursor.moveToFirst()) {
             do {
@@ -174,6 +238,41 @@ public class LocationRecorder implements ExploredProvider {
         return list;
     }
 
+    @Override
+    public void visitVisited(int southE7, int westE7, int northE7, int eastE7, PointVisitor visitor) {
+        Cursor cursor = queryVisited(String.valueOf(PointStore.fromE7(southE7)),
+                String.valueOf(PointStore.fromE7(northE7)),
+                String.valueOf(PointStore.fromE7(westE7)),
+                String.valueOf(PointStore.fromE7(eastE7)));
+        Log.d(TAG, "Results obtained: " + cursor.getCount());
+        if (cursor.moveToFirst()) {
+            do {
+                visitor.visit(PointStore.toE7(cursor.getDouble(0)),
+                        PointStore.toE7(cursor.getDouble(1)));
+            } while (cursor.moveToNext());
+        }
+        if (!cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Queries the latitude and longitude of the points inside the bounding box, through the
+     * spatial index if available.
+     */
+    private Cursor queryVisited(String latitudeMin, String latitudeMax, String longitudeMin,
+                                String longitudeMax) {
+        if (mSpatialIndex) {
+            return this.mDatabase.rawQuery(SELECT_VISITED_INDEXED, new String[]{
+                    latitudeMin, latitudeMax, longitudeMin, longitudeMax,
+                    latitudeMin, latitudeMax, longitudeMin, longitudeMax
+            });
+        }
+        return this.mDatabase.rawQuery(SELECT_VISITED_PLAIN, new String[]{
+                latitudeMin, latitudeMax, longitudeMin, longitudeMax
+        });
+    }
+
     private static class OpenHelper extends SQLiteOpenHelper {
 
         OpenHelper(Context context) {
@@ -184,8 +283,56 @@ public class LocationRecorder implements ExploredProvider {
         public void onCreate(SQLiteDatabase db) {
             Log.d(TAG, "Creating database: " + TABLE_NAME);
             db.execSQL("CREATE TABLE " + TABLE_NAME
-                    + "(id INTEGER PRIMARY KEY, " + LATITUDE + " REAL, "
+                    + "(" + ID + " INTEGER PRIMARY KEY, " + LATITUDE + " REAL, "
                     + LONGITUDE + " REAL)");
+            createSpatialIndex(db);
+        }
+
+        /**
+         * Creates the R*Tree index table and the triggers keeping it in sync with the coordinates
+         * table. If the R*Tree module is missing from the platform SQLite a plain index on the
+         * coordinates is created instead.
+         */
+        private static void createSpatialIndex(SQLiteDatabase db) {
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE " + INDEX_TABLE_NAME + " USING rtree("
+                        + ID + ", " + MIN_LATITUDE + ", " + MAX_LATITUDE + ", "
+                        + MIN_LONGITUDE + ", " + MAX_LONGITUDE + ")");
+            } catch (SQLiteException e) {
+                Log.w(TAG, "R*Tree module not available, using plain index", e);
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + FALLBACK_INDEX_NAME + " ON "
+                        + TABLE_NAME + "(" + LATITUDE + ", " + LONGITUDE + ")");
+                return;
+            }
+            db.execSQL("CREATE TRIGGER " + INDEX_TABLE_NAME + "_insert AFTER INSERT ON "
+                    + TABLE_NAME + " BEGIN INSERT INTO " + INDEX_TABLE_NAME + " VALUES (new." + ID
+                    + ", new." + LATITUDE + ", new." + LATITUDE
+                    + ", new." + LONGITUDE + ", new." + LONGITUDE + "); END");
+            db.execSQL("CREATE TRIGGER " + INDEX_TABLE_NAME + "_delete AFTER DELETE ON "
+                    + TABLE_NAME + " BEGIN DELETE FROM " + INDEX_TABLE_NAME + " WHERE "
+                    + ID + " = old." + ID + "; END");
+        }
+
+        /**
+         * Adds the spatial index to an existing database and fills it with the points already
+         * recorded.
+         */
+        private static boolean upgradeToVersion2(SQLiteDatabase db) {
+            Log.d(TAG, "Upgrading database to version 2, building spatial index.");
+            try {
+                createSpatialIndex(db);
+                if (DatabaseUtils.longForQuery(db,
+                        "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                        new String[]{INDEX_TABLE_NAME}) > 0) {
+                    db.execSQL("INSERT INTO " + INDEX_TABLE_NAME + " SELECT " + ID + ", "
+                            + LATITUDE + ", " + LATITUDE + ", " + LONGITUDE + ", " + LONGITUDE
+                            + " FROM " + TABLE_NAME);
+                }
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Error building spatial index", e);
+                return false;
+            }
+            return true;
         }
 
         @Override
@@ -197,7 +344,7 @@ public class LocationRecorder implements ExploredProvider {
                     int nextVersion = i + 1;
                     switch (nextVersion) {
                         case 2:
-                            // success = upgradeToVersion2(mDatabase);
+                            success = upgradeToVersion2(db);
                             break;
                         case 3:
                             // success = upgradeToVersion3(mDatabase);
@@ -213,6 +360,7 @@ public class LocationRecorder implements ExploredProvider {
                 }
                 db.endTransaction();
             } else {
+                db.execSQL("DROP TABLE IF EXISTS " + INDEX_TABLE_NAME);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
                 onCreate(db);
             }
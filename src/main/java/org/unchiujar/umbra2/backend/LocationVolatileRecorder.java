@@ -71,6 +71,14 @@ public class LocationVolatileRecorder implements ExploredProvider {
         return mLocations;
     }
 
+    @Override
+    public void visitAll(PointVisitor visitor) {
+        for (ApproximateLocation location : mLocations) {
+            visitor.visit(PointStore.toE7(location.getLatitude()),
+                    PointStore.toE7(location.getLongitude()));
+        }
+    }
+
     @Override
     public List<ApproximateLocation> selectVisited(
             ApproximateLocation upperLeft, ApproximateLocation bottomRight) {
@@ -86,6 +94,18 @@ public class LocationVolatileRecorder implements ExploredProvider {
         return visited;
     }
 
+    @Override
+    public void visitVisited(int southE7, int westE7, int northE7, int eastE7, PointVisitor visitor) {
+        for (ApproximateLocation location : mLocations) {
+            int latitude = PointStore.toE7(location.getLatitude());
+            int longitude = PointStore.toE7(location.getLongitude());
+            if (latitude >= southE7 && latitude <= northE7
+                    && longitude >= westE7 && longitude <= eastE7) {
+                visitor.visit(latitude, longitude);
+            }
+        }
+    }
+
     @Override
     public void destroy() {
         // TODO Auto-generated method stub
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.backend;
+
+import java.util.Arrays;
+
+/**
+ * Compact in memory store of explored points. Coordinates are kept as E7 integers in two growable
+ * columns, 8 bytes per point instead of a full location object.
+ * <p/>
+ * Points are kept ordered by their Z-order (Morton) key so that points close to each other are
+ * close in the columns and a bounding box query only scans a key range. New points are appended
+ * to an unsorted tail which is merged into the sorted part once it grows past
+ * {@link #MAX_UNSORTED} points or a fraction of the store.
+ * <p/>
+ * The last {@link #RECENT_ADDS} added points are also kept in the order they were added so the
+ * indexes built from the store can be updated with them instead of being rebuilt, see
+ * {@link #forEachAddedSince(int, PointVisitor)}.
+ * <p/>
+ * The store is thread safe, visitors are called while holding the store lock and must not call
+ * back into the store.
+ */
+public class PointStore implements PointVisitor {
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int MAX_UNSORTED = 1024;
+    /**
+     * Number of last added points kept in the order they were added.
+     */
+    static final int RECENT_ADDS = 1024;
+    private static final double E7 = 1e7d;
+    private static final int LATITUDE_BIAS = 900000000;
+    private static final long LONGITUDE_BIAS = 1800000000L;
+
+    private int[] mLatitudes;
+    private int[] mLongitudes;
+    private int mSize;
+    /**
+     * Number of leading points sorted by Z-order key.
+     */
+    private int mSorted;
+    /**
+     * Last added points, a ring indexed by the added count.
+     */
+    private final int[] mRecentLatitudes = new int[RECENT_ADDS];
+    private final int[] mRecentLongitudes = new int[RECENT_ADDS];
+    /**
+     * Number of points ever added, incremented again when the store is cleared.
+     */
+    private int mAdded;
+    /**
+     * Added count when the store was last cleared.
+     */
+    private int mCleared;
+
+    public PointStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PointStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mLatitudes = new int[capacity];
+        mLongitudes = new int[capacity];
+    }
+
+    public static int toE7(double degrees) {
+        return (int) Math.round(degrees * E7);
+    }
+
+    public static double fromE7(int e7) {
+        return e7 / E7;
+    }
+
+    /**
+     * Z-order key of the coordinates. The key is offset so that comparing keys as signed longs
+     * gives the Z-order.
+     */
+    static long zKey(int latitudeE7, int longitudeE7) {
+        long latitude = latitudeE7 + LATITUDE_BIAS;
+        long longitude = longitudeE7 + LONGITUDE_BIAS;
+        return (spread(longitude) << 1 | spread(latitude)) ^ Long.MIN_VALUE;
+    }
+
+    private static int zLatitude(long key) {
+        return (int) (compact(key ^ Long.MIN_VALUE) - LATITUDE_BIAS);
+    }
+
+    private static int zLongitude(long key) {
+        return (int) (compact((key ^ Long.MIN_VALUE) >>> 1) - LONGITUDE_BIAS);
+    }
+
+    /**
+     * Spreads the lower 32 bits of the value into the even bits of the result.
+     */
+    private static long spread(long value) {
+        value &= 0xffffffffL;
+        value = (value | (value << 16)) & 0x0000ffff0000ffffL;
+        value = (value | (value << 8)) & 0x00ff00ff00ff00ffL;
+        value = (value | (value << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        value = (value | (value << 2)) & 0x3333333333333333L;
+        value = (value | (value << 1)) & 0x5555555555555555L;
+        return value;
+    }
+
+    /**
+     * Inverse of {@link #spread(long)}.
+     */
+    private static long compact(long value) {
+        value &= 0x5555555555555555L;
+        value = (value | (value >>> 1)) & 0x3333333333333333L;
+        value = (value | (value >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+        value = (value | (value >>> 4)) & 0x00ff00ff00ff00ffL;
+        value = (value | (value >>> 8)) & 0x0000ffff0000ffffL;
+        value = (value | (value >>> 16)) & 0x00000000ffffffffL;
+        return value;
+    }
+
+    @Override
+    public void visit(int latitudeE7, int longitudeE7) {
+        add(latitudeE7, longitudeE7);
+    }
+
+    public void add(double latitude, double longitude) {
+        add(toE7(latitude), toE7(longitude));
+    }
+
+    public synchronized void add(int latitudeE7, int longitudeE7) {
+        if (mSize == mLatitudes.length) {
+            int capacity = mSize + (mSize >> 1) + 1;
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+        }
+        mLatitudes[mSize] = latitudeE7;
+        mLongitudes[mSize] = longitudeE7;
+        mSize++;
+        mRecentLatitudes[mAdded % RECENT_ADDS] = latitudeE7;
+        mRecentLongitudes[mAdded % RECENT_ADDS] = longitudeE7;
+        mAdded++;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        mSize = 0;
+        mSorted = 0;
+        // the points added before are no longer in the store
+        mAdded++;
+        mCleared = mAdded;
+    }
+
+    /**
+     * @return the number of points ever added to the store, incremented when the store is cleared
+     */
+    public synchronized int getAddedCount() {
+        return mAdded;
+    }
+
+    /**
+     * Visits the points added after the added count was read, in the order they were added.
+     *
+     * @param added the count read with {@link #getAddedCount()}
+     * @return false without visiting any point if the store was cleared since or if more than
+     * {@link #RECENT_ADDS} points were added since
+     */
+    public synchronized boolean forEachAddedSince(int added, PointVisitor visitor) {
+        if (added < mCleared || mAdded - added > RECENT_ADDS) {
+            return false;
+        }
+        for (int i = added; i < mAdded; i++) {
+            visitor.visit(mRecentLatitudes[i % RECENT_ADDS], mRecentLongitudes[i % RECENT_ADDS]);
+        }
+        return true;
+    }
+
+    /**
+     * Visits all points in Z-order.
+     */
+    public synchronized void forEach(PointVisitor visitor) {
+        sort();
+        for (int i = 0; i < mSize; i++) {
+            visitor.visit(mLatitudes[i], mLongitudes[i]);
+        }
+    }
+
+    /**
+     * Visits the points inside the bounding box, bounds included.
+     */
+    public synchronized void forEachInBounds(int southE7, int westE7, int northE7, int eastE7,
+                                             PointVisitor visitor) {
+        if (mSize - mSorted > Math.max(MAX_UNSORTED, mSorted >> 3)) {
+            sort();
+        }
+        // every point inside the box has a key between the keys of the box corners
+        long minKey = zKey(southE7, westE7);
+        long maxKey = zKey(northE7, eastE7);
+        for (int i = lowerBound(minKey); i < mSorted; i++) {
+            int latitude = mLatitudes[i];
+            int longitude = mLongitudes[i];
+            if (zKey(latitude, longitude) > maxKey) {
+                break;
+            }
+            if (latitude >= southE7 && latitude <= northE7
+                    && longitude >= westE7 && longitude <= eastE7) {
+                visitor.visit(latitude, longitude);
+            }
+        }
+        for (int i = mSorted; i < mSize; i++) {
+            int latitude = mLatitudes[i];
+            int longitude = mLongitudes[i];
+            if (latitude >= southE7 && latitude <= northE7
+                    && longitude >= westE7 && longitude <= eastE7) {
+                visitor.visit(latitude, longitude);
+            }
+        }
+    }
+
+    /**
+     * @return true if a point with the coordinates is in the store
+     */
+    public synchronized boolean contains(int latitudeE7, int longitudeE7) {
+        if (mSize - mSorted > Math.max(MAX_UNSORTED, mSorted >> 3)) {
+            sort();
+        }
+        // the key is unique to the coordinates
+        int index = lowerBound(zKey(latitudeE7, longitudeE7));
+        if (index < mSorted && mLatitudes[index] == latitudeE7
+                && mLongitudes[index] == longitudeE7) {
+            return true;
+        }
+        for (int i = mSorted; i < mSize; i++) {
+            if (mLatitudes[i] == latitudeE7 && mLongitudes[i] == longitudeE7) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index of the first sorted point with a key greater or equal to the given key.
+     */
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = mSorted;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (zKey(mLatitudes[middle], mLongitudes[middle]) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sorts the unsorted tail and merges it into the sorted part of the columns.
+     */
+    private void sort() {
+        if (mSorted == mSize) {
+            return;
+        }
+        int tailSize = mSize - mSorted;
+        long[] tail = new long[tailSize];
+        for (int i = 0; i < tailSize; i++) {
+            tail[i] = zKey(mLatitudes[mSorted + i], mLongitudes[mSorted + i]);
+        }
+        Arrays.sort(tail);
+
+        int[] latitudes = new int[mLatitudes.length];
+        int[] longitudes = new int[mLongitudes.length];
+        int head = 0;
+        int next = 0;
+        int merged = 0;
+        long headKey = head < mSorted ? zKey(mLatitudes[head], mLongitudes[head]) : 0;
+        while (head < mSorted || next < tailSize) {
+            if (next == tailSize || (head < mSorted && headKey <= tail[next])) {
+                latitudes[merged] = mLatitudes[head];
+                longitudes[merged] = mLongitudes[head];
+                head++;
+                if (head < mSorted) {
+                    headKey = zKey(mLatitudes[head], mLongitudes[head]);
+                }
+            } else {
+                latitudes[merged] = zLatitude(tail[next]);
+                longitudes[merged] = zLongitude(tail[next]);
+                next++;
+            }
+            merged++;
+        }
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mSorted = mSize;
+    }
+}
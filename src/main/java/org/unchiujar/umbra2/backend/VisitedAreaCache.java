@@ -41,39 +41,33 @@ import org.unchiujar.umbra2.location.ApproximateLocation;
 import org.unchiujar.umbra2.location.LocationOrder;
 import org.unchiujar.umbra2.services.LocationService;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class VisitedAreaCache implements ExploredProvider {
-    /**
-     * The interval between database updates.
-     */
-    private static final long UPDATE_INTERVAL = 10 * 1000;
-    /**
-     * The maximum number of entries in the cache's TreeSet. UNUSED
-     */
-    private static final int MAX_CACHE_SIZE = 2000;
     private static final Logger LOGGER = LoggerFactory.getLogger(VisitedAreaCache.class);
+    private static final String CACHE_PROVIDER = "Cache";
 
-    private int mPreviousSize = 0;
-
-    private Timer mUpdateTimer;
+    /**
+     * Actual points mCached, one per explored cell.
+     */
+    private PointStore mPoints = new PointStore();
 
     /**
-     * Flag signaling that unsaved data has been added to cache.
+     * Explored cells, used for discarding locations inside an already explored cell.
      */
-    private boolean mDirty = false;
+    private CellCoverageCache mCoverage = new CellCoverageCache();
 
     /**
-     * Actual Locations mCached.
+     * Buffer writing new points to the database in batches.
      */
-    private TreeSet<ApproximateLocation> mLocations = new TreeSet<ApproximateLocation>(
-            new LocationOrder());
+    private WriteBehindFlusher mFlusher;
 
     /**
-     * TreeSet used to keep new locations between database updates.
+     * Listeners notified of newly explored points.
      */
-    private SortedSet<ApproximateLocation> mNewLocations = Collections.synchronizedSortedSet(new TreeSet<ApproximateLocation>(
-            new LocationOrder()));
+    private List<PointVisitor> mInsertListeners = new CopyOnWriteArrayList<PointVisitor>();
 
     private Context mContext;
     private boolean mCached = false;
@@ -85,76 +79,68 @@ public class VisitedAreaCache implements ExploredProvider {
         super();
         this.mContext = context;
         recorder = new LocationRecorder(context);
-        // create database update task to be run
-        // at UPDATE_TIME intervals
-        TimerTask mUpdateDb = new TimerTask() {
-
-            @Override
-            public void run() {
-                if (mDirty) {
-                    LOGGER.debug("Updating database with  {} new locations ", mNewLocations.size());
-                    // TODO lame list creation
-                    ArrayList<ApproximateLocation> addedLocations = new ArrayList<ApproximateLocation>();
-                    for (ApproximateLocation location : mNewLocations) {
-                        recorder.insert(location);
-                    }
-//                    recorder.insert(addedLocations);
-
-                    LOGGER.debug("Database update completed.");
-                    // reset mDirty cache flag
-                    mDirty = false;
-                    // clear the TreeSet containing mLocations
-                    mNewLocations.clear();
-                } else {
-                    LOGGER.debug("No new location added, no update needed.");
-                }
-            }
-
-        };
-        // create and schedule database updates
-        mUpdateTimer = new Timer();
-        mUpdateTimer.schedule(mUpdateDb, UPDATE_INTERVAL, UPDATE_INTERVAL);
+        mFlusher = new WriteBehindFlusher(recorder);
 
         doBindService();
     }
 
     public void destroy() {
-        mUpdateTimer.cancel();
+        mFlusher.destroy();
         doUnbindService();
     }
 
     @Override
-    public void deleteAll() {
-        mLocations.clear();
-
+    public synchronized void deleteAll() {
+        mPoints.clear();
+        mCoverage.deleteAll();
     }
 
     @Override
-    public synchronized long insert(ApproximateLocation location) {
-        mLocations.add(location);
-        // set mDirty cache flag if an actual location was
-        // inserted in the tree, checks by tree size
-        if (mLocations.size() != mPreviousSize) {
-            // add the location to the database update tree set
-            mNewLocations.add(location);
-            LOGGER.debug("Unsaved mLocations: {}", mNewLocations.size());
-            mDirty = true;
-            mPreviousSize = mLocations.size();
+    public long insert(ApproximateLocation location) {
+        int latitudeE7 = PointStore.toE7(location.getLatitude());
+        int longitudeE7 = PointStore.toE7(location.getLongitude());
+        synchronized (this) {
+            // save the location only if it is
+            // in a cell that was not explored before
+            if (!mCoverage.add(location.getLatitude(), location.getLongitude())) {
+                return mPoints.size();
+            }
+            mPoints.add(latitudeE7, longitudeE7);
+            // queue the location for the database update
+            mFlusher.add(latitudeE7, longitudeE7);
+            LOGGER.debug("Unsaved locations: {}", mFlusher.getPendingCount());
         }
-        return mPreviousSize;
+        // listeners are notified outside the lock as they may query the cache
+        for (PointVisitor listener : mInsertListeners) {
+            listener.visit(latitudeE7, longitudeE7);
+        }
+        return mPoints.size();
     }
 
     @Override
-    public synchronized void insert(List<ApproximateLocation> locations) {
+    public void insert(List<ApproximateLocation> locations) {
         for (ApproximateLocation location : locations) {
             insert(location);
         }
     }
 
     @Override
-    public List<ApproximateLocation> selectAll() {
+    public synchronized List<ApproximateLocation> selectAll() {
         cacheDatabaseInMemory();
-        return new ArrayList<ApproximateLocation>(mLocations);
+        final List<ApproximateLocation> all = new ArrayList<ApproximateLocation>(mPoints.size());
+        mPoints.forEach(new PointVisitor() {
+            @Override
+            public void visit(int latitudeE7, int longitudeE7) {
+                all.add(toLocation(latitudeE7, longitudeE7));
+            }
+        });
+        return all;
+    }
+
+    @Override
+    public synchronized void visitAll(PointVisitor visitor) {
+        cacheDatabaseInMemory();
+        mPoints.forEach(visitor);
     }
 
     private void cacheDatabaseInMemory() {
@@ -162,23 +148,64 @@ public class VisitedAreaCache implements ExploredProvider {
             LOGGER.debug("Loading all visited points form database...");
             // TODO find a better method
             // cache the entire database
-            mLocations.addAll(recorder.selectAll());
+            recorder.visitAll(new PointVisitor() {
+                @Override
+                public void visit(int latitudeE7, int longitudeE7) {
+                    if (mCoverage.add(PointStore.fromE7(latitudeE7), PointStore.fromE7(longitudeE7))) {
+                        mPoints.add(latitudeE7, longitudeE7);
+                    }
+                }
+            });
             mCached = true;
-            LOGGER.debug("Loaded {} points", mLocations.size());
+            LOGGER.debug("Loaded {} points", mPoints.size());
 
         }
     }
 
     @Override
-    public List<ApproximateLocation> selectVisited(
+    public synchronized List<ApproximateLocation> selectVisited(
             ApproximateLocation upperLeft, ApproximateLocation lowerRight) {
         cacheDatabaseInMemory();
-        ArrayList<ApproximateLocation> visited = new ArrayList<ApproximateLocation>(
-                mLocations.subSet(upperLeft, lowerRight));
+        final ArrayList<ApproximateLocation> visited = new ArrayList<ApproximateLocation>();
+        mPoints.forEachInBounds(PointStore.toE7(lowerRight.getLatitude()),
+                PointStore.toE7(upperLeft.getLongitude()),
+                PointStore.toE7(upperLeft.getLatitude()),
+                PointStore.toE7(lowerRight.getLongitude()), new PointVisitor() {
+                    @Override
+                    public void visit(int latitudeE7, int longitudeE7) {
+                        visited.add(toLocation(latitudeE7, longitudeE7));
+                    }
+                });
         LOGGER.debug("Returning {}  cached results", visited.size());
         return visited;
     }
 
+    @Override
+    public synchronized void visitVisited(int southE7, int westE7, int northE7, int eastE7,
+                                          PointVisitor visitor) {
+        cacheDatabaseInMemory();
+        mPoints.forEachInBounds(southE7, westE7, northE7, eastE7, visitor);
+    }
+
+    /**
+     * Registers a listener notified with every newly explored point, after it was added to the
+     * cache.
+     */
+    public void addInsertListener(PointVisitor listener) {
+        mInsertListeners.add(listener);
+    }
+
+    public void removeInsertListener(PointVisitor listener) {
+        mInsertListeners.remove(listener);
+    }
+
+    private static ApproximateLocation toLocation(int latitudeE7, int longitudeE7) {
+        ApproximateLocation location = new ApproximateLocation(CACHE_PROVIDER);
+        location.setLatitude(PointStore.fromE7(latitudeE7));
+        location.setLongitude(PointStore.fromE7(longitudeE7));
+        return location;
+    }
+
     /**
      * Messenger for communicating with service.
      */
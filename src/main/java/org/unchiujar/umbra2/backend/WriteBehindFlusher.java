@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.backend;
+
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Write-behind buffer for newly explored points. Points are collected in memory and written to the
+ * database in a single transaction once either {@link #MAX_BATCH_SIZE} points are pending or the
+ * oldest pending point is older than {@link #MAX_PENDING_AGE}. A batch that fails to be written
+ * is kept pending and written again with the next flush.
+ */
+public class WriteBehindFlusher {
+    /**
+     * The maximum time a point waits in memory before being written to the database.
+     */
+    private static final long MAX_PENDING_AGE = 10 * 1000;
+    /**
+     * The number of pending points that triggers a flush regardless of their age.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+    /**
+     * The interval between pending points age checks.
+     */
+    private static final long CHECK_INTERVAL = 1000;
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindFlusher.class);
+
+    /**
+     * Writes a batch of points to the database.
+     */
+    interface Writer {
+        void insert(PointStore points);
+    }
+
+    private final Writer mWriter;
+    private final Timer mTimer = new Timer("WriteBehindFlusher");
+    /**
+     * Lock serializing database writes, the pending points are guarded by this object.
+     */
+    private final Object mFlushLock = new Object();
+
+    private PointStore mPending = new PointStore();
+    private long mOldestPending;
+    private boolean mDestroyed;
+    /**
+     * Whether a flush of a full batch is scheduled and not started yet.
+     */
+    private boolean mFlushScheduled;
+
+    // flush statistics
+    private long mFlushCount;
+    private long mFlushedPoints;
+    private long mTotalFlushMillis;
+    private long mLastFlushMillis;
+    private int mLastBatchSize;
+    private long mFailedFlushes;
+
+    public WriteBehindFlusher(final LocationRecorder recorder) {
+        this(new Writer() {
+            @Override
+            public void insert(PointStore points) {
+                recorder.insert(points);
+            }
+        });
+    }
+
+    WriteBehindFlusher(Writer writer) {
+        mWriter = writer;
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                boolean expired;
+                synchronized (WriteBehindFlusher.this) {
+                    expired = mPending.size() > 0
+                            && SystemClock.elapsedRealtime() - mOldestPending >= MAX_PENDING_AGE;
+                }
+                if (expired) {
+                    flush();
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+
+    /**
+     * Queues a point for writing to the database.
+     */
+    public void add(int latitudeE7, int longitudeE7) {
+        synchronized (this) {
+            if (mPending.size() == 0) {
+                mOldestPending = SystemClock.elapsedRealtime();
+            }
+            mPending.add(latitudeE7, longitudeE7);
+            // a failed batch is kept pending so the batch size may be exceeded
+            if (mPending.size() < MAX_BATCH_SIZE || mFlushScheduled) {
+                return;
+            }
+            if (!mDestroyed) {
+                LOGGER.debug("Batch size reached, scheduling flush");
+                mFlushScheduled = true;
+                mTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        synchronized (WriteBehindFlusher.this) {
+                            mFlushScheduled = false;
+                        }
+                        flush();
+                    }
+                }, 0);
+                return;
+            }
+        }
+        // the timer is cancelled, write the batch on this thread
+        flush();
+    }
+
+    /**
+     * Writes all pending points to the database in one transaction.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            PointStore batch;
+            long oldest;
+            synchronized (this) {
+                if (mPending.size() == 0) {
+                    return;
+                }
+                batch = mPending;
+                oldest = mOldestPending;
+                mPending = new PointStore();
+            }
+            long start = SystemClock.elapsedRealtime();
+            try {
+                mWriter.insert(batch);
+            } catch (SQLiteException e) {
+                LOGGER.error("Error writing {} points, keeping them pending", batch.size(), e);
+                synchronized (this) {
+                    // the failed batch is older than the points added since
+                    mPending.forEach(batch);
+                    mPending = batch;
+                    mOldestPending = oldest;
+                    mFailedFlushes++;
+                }
+                return;
+            }
+            long duration = SystemClock.elapsedRealtime() - start;
+            synchronized (this) {
+                mFlushCount++;
+                mFlushedPoints += batch.size();
+                mTotalFlushMillis += duration;
+                mLastFlushMillis = duration;
+                mLastBatchSize = batch.size();
+            }
+            LOGGER.debug("Flushed {} points in {} ms, {} flushes {} points {} ms total",
+                    batch.size(), duration, mFlushCount, mFlushedPoints, mTotalFlushMillis);
+        }
+    }
+
+    /**
+     * Stops the periodic checks and writes the pending points.
+     */
+    public void destroy() {
+        synchronized (this) {
+            mDestroyed = true;
+            mTimer.cancel();
+        }
+        flush();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized long getFlushCount() {
+        return mFlushCount;
+    }
+
+    public synchronized long getFlushedPoints() {
+        return mFlushedPoints;
+    }
+
+    public synchronized long getLastFlushMillis() {
+        return mLastFlushMillis;
+    }
+
+    public synchronized int getLastBatchSize() {
+        return mLastBatchSize;
+    }
+
+    /**
+     * @return the number of flushes whose batch could not be written
+     */
+    public synchronized long getFailedFlushes() {
+        return mFailedFlushes;
+    }
+
+    public synchronized long getAverageFlushMillis() {
+        return mFlushCount == 0 ? 0 : mTotalFlushMillis / mFlushCount;
+    }
+}
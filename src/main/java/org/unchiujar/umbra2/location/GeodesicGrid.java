@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.location;
+
+import static org.unchiujar.umbra2.location.LocationOrder.METERS_RADIUS;
+
+/**
+ * Equal area grid dividing the globe into cells roughly {@link LocationOrder#METERS_RADIUS} wide.
+ * <p/>
+ * Rows have a constant latitude height. The number of columns in a row shrinks with the cosine of
+ * the latitude so that cells keep approximately the same width in meters towards the poles. The
+ * column counts are computed once for bands of rows, snapping a location to its cell is then
+ * plain arithmetic.
+ * <p/>
+ * A cell is identified by a packed long key, the row in the upper 32 bits and the column in the
+ * lower 32 bits.
+ */
+public final class GeodesicGrid {
+    /**
+     * Mean length of a latitude degree in meters.
+     */
+    public static final double METERS_PER_DEGREE = 111320d;
+    /**
+     * Height of a row in degrees.
+     */
+    public static final double ROW_DEGREES = METERS_RADIUS / METERS_PER_DEGREE;
+    /**
+     * Number of rows sharing the same column count. The cell width varies by well under a
+     * percent inside a band.
+     */
+    private static final int BAND_ROWS = 64;
+    private static final int ROWS = (int) Math.ceil(180d / ROW_DEGREES);
+    private static final int[] BAND_COLUMNS = new int[(ROWS + BAND_ROWS - 1) / BAND_ROWS];
+
+    static {
+        for (int band = 0; band < BAND_COLUMNS.length; band++) {
+            double latitude = -90d + (band * BAND_ROWS + BAND_ROWS / 2d) * ROW_DEGREES;
+            double columns = 360d * Math.cos(Math.toRadians(Math.min(latitude, 90d))) / ROW_DEGREES;
+            BAND_COLUMNS[band] = Math.max(1, (int) columns);
+        }
+    }
+
+    private GeodesicGrid() {
+    }
+
+    public static int row(double latitude) {
+        int row = (int) ((latitude + 90d) / ROW_DEGREES);
+        return row < 0 ? 0 : (row >= ROWS ? ROWS - 1 : row);
+    }
+
+    public static int columns(int row) {
+        return BAND_COLUMNS[row / BAND_ROWS];
+    }
+
+    public static int column(int row, double longitude) {
+        int columns = columns(row);
+        int column = (int) ((longitude + 180d) / 360d * columns);
+        return column < 0 ? 0 : (column >= columns ? columns - 1 : column);
+    }
+
+    /**
+     * Snaps the coordinates to the containing cell.
+     *
+     * @param latitude  in decimal degrees
+     * @param longitude in decimal degrees
+     * @return the packed cell key
+     */
+    public static long key(double latitude, double longitude) {
+        int row = row(latitude);
+        return pack(row, column(row, longitude));
+    }
+
+    public static long pack(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    public static int unpackRow(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int unpackColumn(long key) {
+        return (int) key;
+    }
+
+    public static double centerLatitude(long key) {
+        return -90d + (unpackRow(key) + 0.5d) * ROW_DEGREES;
+    }
+
+    public static double centerLongitude(long key) {
+        int row = unpackRow(key);
+        return -180d + (unpackColumn(key) + 0.5d) * 360d / columns(row);
+    }
+}
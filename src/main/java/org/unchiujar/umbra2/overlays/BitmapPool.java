@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of square ARGB bitmaps of a single size, shared by the threads encoding tiles.
+ * Bitmaps are created when the pool is empty and recycled when it is full.
+ */
+class BitmapPool {
+    private final int mSize;
+    private final BlockingQueue<Bitmap> mBitmaps;
+
+    /**
+     * @param size     width and height of the bitmaps
+     * @param capacity maximum number of idle bitmaps kept
+     */
+    BitmapPool(int size, int capacity) {
+        mSize = size;
+        mBitmaps = new ArrayBlockingQueue<Bitmap>(capacity);
+    }
+
+    /**
+     * @return a bitmap of the pool size, its pixels are undefined
+     */
+    Bitmap acquire() {
+        Bitmap bitmap = mBitmaps.poll();
+        return bitmap != null ? bitmap : Bitmap.createBitmap(mSize, mSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a bitmap to the pool, it must not be used afterwards.
+     */
+    void release(Bitmap bitmap) {
+        if (!mBitmaps.offer(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles the idle bitmaps.
+     */
+    void clear() {
+        Bitmap bitmap;
+        while ((bitmap = mBitmaps.poll()) != null) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.overlays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unchiujar.umbra2.backend.ExploredProvider;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.unchiujar.umbra2.location.LocationOrder.METERS_RADIUS;
+
+/**
+ * Explored area as vector outlines, the union of the explored discs traced into simplified rings.
+ * Tiles drawn from the rings at any zoom level do not visit the explored points, and the rings
+ * give the explored area.
+ * <p/>
+ * The discs are covered on a grid whose cells are the world pixels of {@link #ZOOM}, a few meters
+ * wide. The grid is split into regions, the tiles of that zoom level, and each region keeps its
+ * covered cells and its rings. A newly explored point covers the cells of its disc and the rings
+ * of the changed regions are traced again when next needed. The cells are loaded from the explored
+ * provider when first needed.
+ */
+public class CoverageIndex implements PointVisitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoverageIndex.class);
+    /**
+     * Zoom level of the cells, their width is the size of a world pixel at this zoom.
+     */
+    static final int ZOOM = 15;
+    /**
+     * Regions smaller than this many tile pixels are drawn as an explored pixel, as the
+     * {@link TilePyramid} keeps the explored pixels when zooming out.
+     */
+    private static final int MIN_RING_PIXELS = 2;
+    private static final int SIZE = ExploredTileProvider.TILE_SIZE;
+
+    private final ExploredProvider mSource;
+    private final Map<Long, Region> mRegions = new HashMap<Long, Region>();
+    private boolean mLoaded;
+    private int mTraced;
+
+    /**
+     * Covered cells and outline of a region.
+     */
+    private static final class Region {
+        private final int mX;
+        private final int mY;
+        private final long[] mCells = new long[SIZE * SIZE / 64];
+        /**
+         * Rings of the covered cells, null if cells were covered since they were traced.
+         */
+        private List<float[]> mRings;
+        private double mArea;
+
+        Region(int x, int y) {
+            mX = x;
+            mY = y;
+        }
+    }
+
+    public CoverageIndex(ExploredProvider source) {
+        mSource = source;
+    }
+
+    /**
+     * Covers the disc of a newly explored point, ignored until the cells are loaded as they will
+     * include it.
+     */
+    @Override
+    public synchronized void visit(int latitudeE7, int longitudeE7) {
+        if (mLoaded) {
+            add(latitudeE7, longitudeE7);
+        }
+    }
+
+    private void add(int latitudeE7, int longitudeE7) {
+        double latitude = PointStore.fromE7(latitudeE7);
+        double worldSize = MercatorProjection.worldSize(ZOOM);
+        double x = MercatorProjection.worldX(PointStore.fromE7(longitudeE7)) * worldSize;
+        double y = MercatorProjection.worldY(latitude) * worldSize;
+        double radius = METERS_RADIUS * 2 / metersPerCell(latitude);
+        int maxCell = (int) worldSize - 1;
+        int fromX = Math.max(0, (int) Math.floor(x - radius));
+        int toX = Math.min(maxCell, (int) Math.ceil(x + radius));
+        int fromY = Math.max(0, (int) Math.floor(y - radius));
+        int toY = Math.min(maxCell, (int) Math.ceil(y + radius));
+        double squaredRadius = radius * radius;
+        for (int cellY = fromY; cellY <= toY; cellY++) {
+            double dy = cellY + 0.5d - y;
+            for (int cellX = fromX; cellX <= toX; cellX++) {
+                double dx = cellX + 0.5d - x;
+                if (dx * dx + dy * dy > squaredRadius) {
+                    continue;
+                }
+                Region region = region(cellX / SIZE, cellY / SIZE);
+                if (CoverageOutline.cover(region.mCells, SIZE, cellX % SIZE, cellY % SIZE)) {
+                    region.mRings = null;
+                }
+            }
+        }
+    }
+
+    private Region region(int x, int y) {
+        Long key = TileBucketIndex.tileKey(x, y);
+        Region region = mRegions.get(key);
+        if (region == null) {
+            region = new Region(x, y);
+            mRegions.put(key, region);
+        }
+        return region;
+    }
+
+    /**
+     * @return the width of a cell in meters at the latitude
+     */
+    private static double metersPerCell(double latitude) {
+        return TileBucketIndex.EQUATOR_METERS * Math.cos(Math.toRadians(latitude))
+                / MercatorProjection.worldSize(ZOOM);
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mSource.visitAll(new PointVisitor() {
+            @Override
+            public void visit(int latitudeE7, int longitudeE7) {
+                add(latitudeE7, longitudeE7);
+            }
+        });
+        mLoaded = true;
+        LOGGER.debug("Covered explored discs in {} regions", mRegions.size());
+    }
+
+    /**
+     * @return the rings of the region, traced again if cells were covered since
+     */
+    private List<float[]> rings(Region region) {
+        if (region.mRings == null) {
+            region.mRings = CoverageOutline.trace(region.mCells, SIZE);
+            double area = 0;
+            for (float[] ring : region.mRings) {
+                area += CoverageOutline.area(ring);
+            }
+            region.mArea = area;
+            mTraced++;
+        }
+        return region.mRings;
+    }
+
+    /**
+     * Adds the explored rings overlapping a tile to the rasterizer, begun for the tile.
+     *
+     * @return false if nothing is explored in the tile
+     */
+    synchronized boolean addTo(PolygonRasterizer rasterizer, int tileX, int tileY, int zoom) {
+        load();
+        // tile pixels per cell and the regions overlapping the tile
+        double scale = Math.pow(2, zoom - ZOOM);
+        int fromX;
+        int toX;
+        int fromY;
+        int toY;
+        if (zoom >= ZOOM) {
+            fromX = toX = tileX >> (zoom - ZOOM);
+            fromY = toY = tileY >> (zoom - ZOOM);
+        } else {
+            int shift = ZOOM - zoom;
+            fromX = tileX << shift;
+            toX = ((tileX + 1) << shift) - 1;
+            fromY = tileY << shift;
+            toY = ((tileY + 1) << shift) - 1;
+        }
+        boolean found = false;
+        if ((long) (toX - fromX + 1) * (toY - fromY + 1) <= mRegions.size()) {
+            for (int x = fromX; x <= toX; x++) {
+                for (int y = fromY; y <= toY; y++) {
+                    Region region = mRegions.get(TileBucketIndex.tileKey(x, y));
+                    if (region != null) {
+                        addTo(rasterizer, region, tileX, tileY, scale);
+                        found = true;
+                    }
+                }
+            }
+        } else {
+            for (Region region : mRegions.values()) {
+                if (region.mX >= fromX && region.mX <= toX && region.mY >= fromY && region.mY <= toY) {
+                    addTo(rasterizer, region, tileX, tileY, scale);
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void addTo(PolygonRasterizer rasterizer, Region region, int tileX, int tileY,
+                       double scale) {
+        double regionPixels = SIZE * scale;
+        double offsetX = region.mX * regionPixels - (double) tileX * SIZE;
+        double offsetY = region.mY * regionPixels - (double) tileY * SIZE;
+        if (regionPixels < MIN_RING_PIXELS) {
+            rasterizer.addPoint(offsetX + regionPixels / 2, offsetY + regionPixels / 2);
+            return;
+        }
+        for (float[] ring : rings(region)) {
+            rasterizer.addRing(ring, scale, offsetX, offsetY);
+        }
+    }
+
+    /**
+     * @return the explored area in square meters, measured on the rings
+     */
+    public synchronized double getExploredArea() {
+        load();
+        double area = 0;
+        double worldSize = MercatorProjection.worldSize(ZOOM);
+        for (Region region : mRegions.values()) {
+            rings(region);
+            double latitude = MercatorProjection.latitude((region.mY + 0.5d) * SIZE / worldSize);
+            double cellMeters = metersPerCell(latitude);
+            area += region.mArea * cellMeters * cellMeters;
+        }
+        return area;
+    }
+
+    public synchronized int getRegionCount() {
+        return mRegions.size();
+    }
+
+    /**
+     * @return the number of times the rings of a region were traced
+     */
+    public synchronized int getTracedCount() {
+        return mTraced;
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.overlays;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Traces the outlines of the covered cells of a square grid and simplifies them. Outlines are
+ * rings of cell corners, x then y, with y growing downwards. The rings around covered areas turn
+ * clockwise and the rings around uncovered holes counterclockwise, so filling them with the even
+ * odd rule gives back the covered cells.
+ * <p/>
+ * The traced rings follow the cell edges, they are simplified with the Douglas-Peucker algorithm
+ * so the staircases become slopes. The corners on the grid border are kept, the rings of
+ * neighbouring grids then meet without gaps.
+ */
+final class CoverageOutline {
+    /**
+     * Largest distance in cells of a removed corner from the simplified ring.
+     */
+    static final float TOLERANCE = 0.75f;
+
+    private static final int EAST = 0;
+    private static final int SOUTH = 1;
+    private static final int WEST = 2;
+    private static final int NORTH = 3;
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+    /**
+     * Turns tried when leaving a corner, right, straight then left.
+     */
+    private static final int[] TURNS = {1, 0, 3};
+
+    private CoverageOutline() {
+    }
+
+    static boolean isCovered(long[] cells, int size, int x, int y) {
+        if (x < 0 || y < 0 || x >= size || y >= size) {
+            return false;
+        }
+        int index = y * size + x;
+        return (cells[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return true if the cell was not covered before
+     */
+    static boolean cover(long[] cells, int size, int x, int y) {
+        int index = y * size + x;
+        long bit = 1L << index;
+        if ((cells[index >>> 6] & bit) != 0) {
+            return false;
+        }
+        cells[index >>> 6] |= bit;
+        return true;
+    }
+
+    /**
+     * Traces and simplifies the outlines of the covered cells.
+     *
+     * @param cells covered cells, one bit per cell, row by row
+     * @param size  width and height of the grid in cells
+     */
+    static List<float[]> trace(long[] cells, int size) {
+        int corners = size + 1;
+        // cell edges between covered and uncovered cells, by starting corner
+        byte[] edges = new byte[corners * corners];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (!isCovered(cells, size, x, y)) {
+                    continue;
+                }
+                if (!isCovered(cells, size, x, y - 1)) {
+                    edges[y * corners + x] |= 1 << EAST;
+                }
+                if (!isCovered(cells, size, x + 1, y)) {
+                    edges[y * corners + x + 1] |= 1 << SOUTH;
+                }
+                if (!isCovered(cells, size, x, y + 1)) {
+                    edges[(y + 1) * corners + x + 1] |= 1 << WEST;
+                }
+                if (!isCovered(cells, size, x - 1, y)) {
+                    edges[(y + 1) * corners + x] |= 1 << NORTH;
+                }
+            }
+        }
+
+        List<float[]> rings = new ArrayList<float[]>();
+        int[] xs = new int[64];
+        int[] ys = new int[64];
+        for (int start = 0; start < edges.length; start++) {
+            while (edges[start] != 0) {
+                int count = 0;
+                int corner = start;
+                int direction = Integer.numberOfTrailingZeros(edges[start]);
+                int previous = -1;
+                while (true) {
+                    if (direction != previous) {
+                        if (count == xs.length) {
+                            xs = Arrays.copyOf(xs, count * 2);
+                            ys = Arrays.copyOf(ys, count * 2);
+                        }
+                        xs[count] = corner % corners;
+                        ys[count] = corner / corners;
+                        count++;
+                    }
+                    edges[corner] &= ~(1 << direction);
+                    corner += DX[direction] + DY[direction] * corners;
+                    if (corner == start) {
+                        break;
+                    }
+                    previous = direction;
+                    direction = next(edges[corner], direction);
+                }
+                rings.add(simplify(xs, ys, count, size));
+            }
+        }
+        return rings;
+    }
+
+    private static int next(int edges, int direction) {
+        for (int turn : TURNS) {
+            int next = (direction + turn) & 3;
+            if ((edges & (1 << next)) != 0) {
+                return next;
+            }
+        }
+        throw new IllegalStateException("Outline not closed");
+    }
+
+    /**
+     * Removes the corners closer than {@link #TOLERANCE} to the simplified ring, keeping the
+     * corners on the grid border.
+     *
+     * @return the ring as x, y pairs
+     */
+    static float[] simplify(int[] xs, int[] ys, int count, int size) {
+        boolean[] kept = new boolean[count];
+        int anchors = 0;
+        for (int i = 0; i < count; i++) {
+            if (xs[i] == 0 || ys[i] == 0 || xs[i] == size || ys[i] == size) {
+                kept[i] = true;
+                anchors++;
+            }
+        }
+        if (anchors < 2) {
+            int first = 0;
+            while (anchors == 1 && !kept[first]) {
+                first++;
+            }
+            kept[first] = true;
+            kept[farthest(xs, ys, count, first)] = true;
+        }
+        // simplify the part of the ring between each kept corner and the next
+        int[] stack = new int[64];
+        for (int from = 0; from < count; from++) {
+            if (!kept[from]) {
+                continue;
+            }
+            int to = from + 1;
+            while (!kept[to % count]) {
+                to++;
+            }
+            int depth = 0;
+            stack[depth++] = from;
+            stack[depth++] = to;
+            while (depth > 0) {
+                int last = stack[--depth];
+                int first = stack[--depth];
+                int split = -1;
+                double worst = TOLERANCE * TOLERANCE;
+                for (int i = first + 1; i < last; i++) {
+                    double distance = squaredDistance(xs, ys, count, i, first, last);
+                    if (distance > worst) {
+                        worst = distance;
+                        split = i;
+                    }
+                }
+                if (split < 0) {
+                    continue;
+                }
+                kept[split % count] = true;
+                if (depth + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[depth++] = first;
+                stack[depth++] = split;
+                stack[depth++] = split;
+                stack[depth++] = last;
+            }
+        }
+
+        int remaining = 0;
+        for (boolean keep : kept) {
+            if (keep) {
+                remaining++;
+            }
+        }
+        // rings of a cell or two would collapse, they keep their corners
+        boolean all = remaining < 3;
+        float[] ring = new float[2 * (all ? count : remaining)];
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            if (all || kept[i]) {
+                ring[index++] = xs[i];
+                ring[index++] = ys[i];
+            }
+        }
+        return ring;
+    }
+
+    private static int farthest(int[] xs, int[] ys, int count, int from) {
+        int farthest = from;
+        long worst = -1;
+        for (int i = 0; i < count; i++) {
+            long dx = xs[i] - xs[from];
+            long dy = ys[i] - ys[from];
+            if (dx * dx + dy * dy > worst) {
+                worst = dx * dx + dy * dy;
+                farthest = i;
+            }
+        }
+        return farthest;
+    }
+
+    /**
+     * @return the squared distance of the corner i to the segment between the corners first and
+     * last, indexes wrapping around the ring
+     */
+    private static double squaredDistance(int[] xs, int[] ys, int count, int i, int first, int last) {
+        double x = xs[i % count];
+        double y = ys[i % count];
+        double x0 = xs[first % count];
+        double y0 = ys[first % count];
+        double dx = xs[last % count] - x0;
+        double dy = ys[last % count] - y0;
+        double length = dx * dx + dy * dy;
+        if (length == 0) {
+            return (x - x0) * (x - x0) + (y - y0) * (y - y0);
+        }
+        double t = Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / length));
+        double px = x0 + t * dx - x;
+        double py = y0 + t * dy - y;
+        return px * px + py * py;
+    }
+
+    /**
+     * @return the area of a ring in square cells, positive around covered areas and negative
+     * around holes
+     */
+    static double area(float[] ring) {
+        double area = 0;
+        int length = ring.length;
+        for (int i = 0; i < length; i += 2) {
+            int next = (i + 2) % length;
+            area += (double) ring[i] * ring[next + 1] - (double) ring[next] * ring[i + 1];
+        }
+        return area / 2;
+    }
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unchiujar.umbra2.backend.ExploredProvider;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts of explored points per bin of the tiles of the zoomed out levels, rendered as a heatmap
+ * instead of the fog. Each tile is split in {@link #BINS} x {@link #BINS} bins and only tiles
+ * with points have counts.
+ * <p/>
+ * The counts of every zoom level are updated with each newly explored point so rendering a tile
+ * only reads its bins. They are loaded from the explored provider when first needed.
+ */
+public class DensityGrid implements PointVisitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DensityGrid.class);
+    /**
+     * Bins per tile side.
+     */
+    static final int BINS = 32;
+    /**
+     * Highest zoom level with counts, the heatmap replaces the fog tiles downsampled by the
+     * {@link TilePyramid}.
+     */
+    static final int MAX_ZOOM = TilePyramid.BASE_ZOOM - 1;
+
+    /**
+     * Colours of the heatmap from the sparsest to the densest bins, red, green, blue and alpha.
+     */
+    private static final int[][] RAMP = {
+            {0, 0, 255, 120},
+            {0, 255, 255, 150},
+            {255, 255, 0, 190},
+            {255, 0, 0, 230}};
+    /**
+     * Palettes of {@link #render(int[], int, byte[], int)} by fog alpha.
+     */
+    private static final AtomicReferenceArray<int[]> PALETTES = new AtomicReferenceArray<int[]>(256);
+
+    private final ExploredProvider mSource;
+    /**
+     * Density bins of the tiles by tile key, per zoom level.
+     */
+    private final List<Map<Long, int[]>> mTiles = new ArrayList<Map<Long, int[]>>(MAX_ZOOM + 1);
+    private final int[] mMaxCounts = new int[MAX_ZOOM + 1];
+    private boolean mLoaded;
+
+    public DensityGrid(ExploredProvider source) {
+        mSource = source;
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            mTiles.add(new HashMap<Long, int[]>());
+        }
+    }
+
+    /**
+     * Counts a newly explored point, ignored until the counts are loaded as they will include it.
+     */
+    @Override
+    public synchronized void visit(int latitudeE7, int longitudeE7) {
+        if (mLoaded) {
+            add(latitudeE7, longitudeE7);
+        }
+    }
+
+    private void add(int latitudeE7, int longitudeE7) {
+        double worldX = MercatorProjection.worldX(PointStore.fromE7(longitudeE7));
+        double worldY = MercatorProjection.worldY(PointStore.fromE7(latitudeE7));
+        int tileSize = ExploredTileProvider.TILE_SIZE;
+        int binSize = tileSize / BINS;
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            double worldSize = MercatorProjection.worldSize(zoom);
+            int maxPixel = (int) worldSize - 1;
+            int pixelX = Math.min(maxPixel, Math.max(0, (int) (worldX * worldSize)));
+            int pixelY = Math.min(maxPixel, Math.max(0, (int) (worldY * worldSize)));
+            Long key = TileBucketIndex.tileKey(pixelX / tileSize, pixelY / tileSize);
+            int[] bins = mTiles.get(zoom).get(key);
+            if (bins == null) {
+                bins = new int[BINS * BINS];
+                mTiles.get(zoom).put(key, bins);
+            }
+            int bin = (pixelY % tileSize) / binSize * BINS + (pixelX % tileSize) / binSize;
+            int count = ++bins[bin];
+            if (count > mMaxCounts[zoom]) {
+                mMaxCounts[zoom] = count;
+            }
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mSource.visitAll(new PointVisitor() {
+            @Override
+            public void visit(int latitudeE7, int longitudeE7) {
+                add(latitudeE7, longitudeE7);
+            }
+        });
+        mLoaded = true;
+        LOGGER.debug("Counted explored points in {} tiles at zoom {}", mTiles.get(MAX_ZOOM).size(),
+                MAX_ZOOM);
+    }
+
+    /**
+     * Copies the counts of a tile.
+     *
+     * @param bins receives the counts, row by row
+     * @return the highest count of the zoom level or 0 if the tile has no points
+     */
+    public synchronized int copyBins(int x, int y, int zoom, int[] bins) {
+        load();
+        int[] counts = mTiles.get(zoom).get(TileBucketIndex.tileKey(x, y));
+        if (counts == null) {
+            return 0;
+        }
+        System.arraycopy(counts, 0, bins, 0, counts.length);
+        return mMaxCounts[zoom];
+    }
+
+    /**
+     * Converts the counts of a tile into palette indexes, see {@link #palette(int)}. Counts are
+     * scaled logarithmically so sparse areas stay visible next to dense ones.
+     *
+     * @param indexes receives the size * size palette indexes of the pixels
+     */
+    static void render(int[] bins, int maxCount, byte[] indexes, int size) {
+        double scale = 254 / Math.log1p(maxCount);
+        int binSize = size / BINS;
+        for (int row = 0; row < size; row++) {
+            int binRow = row / binSize * BINS;
+            for (int column = 0; column < size; column++) {
+                int count = bins[binRow + column / binSize];
+                indexes[row * size + column] = (byte) (count == 0 ? 0
+                        : 1 + (int) (Math.log1p(count) * scale));
+            }
+        }
+    }
+
+    /**
+     * Returns the ARGB palette of the heatmap, index 0 is the fog and the other indexes the
+     * colour ramp from the sparsest to the densest bins.
+     *
+     * @param fogAlpha alpha of the fog pixels
+     */
+    static int[] palette(int fogAlpha) {
+        int[] palette = PALETTES.get(fogAlpha);
+        if (palette != null) {
+            return palette;
+        }
+        palette = new int[256];
+        palette[0] = fogAlpha << 24;
+        int segments = RAMP.length - 1;
+        for (int index = 1; index < 256; index++) {
+            double position = (index - 1) / 254d * segments;
+            int segment = Math.min(segments - 1, (int) position);
+            double fraction = position - segment;
+            int color = 0;
+            for (int channel = 0; channel < 4; channel++) {
+                int from = RAMP[segment][channel];
+                int to = RAMP[segment + 1][channel];
+                int value = (int) Math.round(from + (to - from) * fraction);
+                // red, green, blue then alpha in the top byte
+                color |= channel == 3 ? value << 24 : value << (16 - 8 * channel);
+            }
+            palette[index] = color;
+        }
+        PALETTES.set(fogAlpha, palette);
+        return palette;
+    }
+}
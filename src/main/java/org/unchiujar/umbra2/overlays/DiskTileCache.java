@@ -0,0 +1,439 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Rendered fog tiles stored in a SQLite database so they are not rendered again after a restart.
+ * The coverage masks of the tiles are stored deflated, keyed by coordinates, so changing the fog
+ * transparency keeps them. The database version is the version of the rendered data and all
+ * tiles are dropped when it changes.
+ * <p/>
+ * A newly explored point only removes the tiles its disc overlaps, at every zoom level. The
+ * generation counter is incremented by each new point so tiles rendered before it are not
+ * stored, and no tile is read until the removal is done. Writes are done on a single background
+ * thread, in order, and the least recently read tiles are removed when the database grows over
+ * {@link #MAX_SIZE_BYTES}.
+ */
+public class DiskTileCache implements PointVisitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskTileCache.class);
+    private static final String DATABASE_NAME = "tiles.db";
+    /**
+     * Private preferences file describing the stored tiles, kept apart from the user settings.
+     */
+    private static final String PREFERENCES_NAME = "tiles";
+    /**
+     * Whether the stored tiles were rendered by the {@link DistanceFieldRasterizer}.
+     */
+    private static final String DISTANCE_FIELD = "distance_field";
+    /**
+     * Version of the rendered tiles. Increment when the tile rendering or the database structure
+     * is modified, the cached tiles are then dropped.
+     */
+    private static final int DATABASE_VERSION = 5;
+    private static final String TABLE_NAME = "tiles";
+    private static final String ZOOM = "zoom";
+    private static final String X = "x";
+    private static final String Y = "y";
+    private static final String DATA = "data";
+    private static final String ACCESSED = "accessed";
+
+    /**
+     * Size of the stored tiles over which the least recently used are removed.
+     */
+    private static final long MAX_SIZE_BYTES = 32L * 1024 * 1024;
+    /**
+     * Part of the maximum size kept when removing tiles.
+     */
+    private static final double TRIM_RATIO = 0.75d;
+
+    private static final String KEY = ZOOM + " = ? AND " + X + " = ? AND " + Y + " = ?";
+    private static final String INSERT = "INSERT OR REPLACE INTO " + TABLE_NAME + "(" + ZOOM + ","
+            + X + "," + Y + "," + DATA + "," + ACCESSED + ") values (?,?,?,?,?)";
+    private static final String TOUCH = "UPDATE " + TABLE_NAME + " SET " + ACCESSED + " = ? WHERE "
+            + KEY;
+    private static final String INVALIDATE = "DELETE FROM " + TABLE_NAME + " WHERE " + ZOOM
+            + " = ? AND " + X + " BETWEEN ? AND ? AND " + Y + " BETWEEN ? AND ?";
+
+    private final Context mContext;
+    private final OpenHelper mOpenHelper;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    private volatile int mGeneration;
+    /**
+     * Generation of the last new point whose tiles were removed.
+     */
+    private volatile int mInvalidatedGeneration;
+    /**
+     * Compresses the stored masks, only used on the writer thread.
+     */
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] mDeflateBuffer = new byte[4096];
+    /**
+     * Size of the stored tiles, only accessed from the writer thread.
+     */
+    private long mSizeBytes = -1;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mInvalidated = new AtomicInteger();
+
+    public DiskTileCache(Context context) {
+        mContext = context;
+        mOpenHelper = new OpenHelper(context);
+    }
+
+    /**
+     * Sets the renderer of the stored tiles, removing all of them if they were rendered by the
+     * other one.
+     *
+     * @param distanceField true for the {@link DistanceFieldRasterizer}, false for the discs
+     */
+    public void setDistanceField(boolean distanceField) {
+        SharedPreferences preferences = mContext.getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+        if (preferences.getBoolean(DISTANCE_FIELD, false) == distanceField) {
+            return;
+        }
+        LOGGER.debug("Fog renderer changed, removing all stored tiles");
+        preferences.edit().putBoolean(DISTANCE_FIELD, distanceField).apply();
+        newGeneration(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOpenHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
+                } catch (SQLiteException e) {
+                    LOGGER.error("Error removing stored tiles", e);
+                }
+                mSizeBytes = -1;
+            }
+        });
+    }
+
+    /**
+     * Starts a new generation and queues the removal of the tiles it makes stale. Both are done
+     * under the lock so the removals run in generation order, from the map and insert threads.
+     *
+     * @param removal removes the stale tiles, on the writer thread
+     */
+    private synchronized void newGeneration(final Runnable removal) {
+        final int generation = ++mGeneration;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                removal.run();
+                mInvalidatedGeneration = generation;
+            }
+        });
+    }
+
+    /**
+     * @return the coverage mask of the tile or null if the tile is not cached
+     */
+    public byte[] get(final int x, final int y, final int zoom) {
+        if (mInvalidatedGeneration != mGeneration) {
+            LOGGER.debug("Tiles of new points not removed yet, not reading tile {} {}", x, y);
+            mMisses.incrementAndGet();
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mOpenHelper.getReadableDatabase().query(TABLE_NAME, new String[]{DATA}, KEY,
+                    keyArguments(x, y, zoom), null, null, null);
+            if (!cursor.moveToFirst()) {
+                mMisses.incrementAndGet();
+                return null;
+            }
+            byte[] mask = inflate(cursor.getBlob(0));
+            if (mask == null) {
+                mMisses.incrementAndGet();
+                return null;
+            }
+            mHits.incrementAndGet();
+            final long accessed = System.currentTimeMillis();
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SQLiteStatement touch = mOpenHelper.getWritableDatabase().compileStatement(TOUCH);
+                        touch.bindLong(1, accessed);
+                        bindKey(touch, 2, x, y, zoom);
+                        touch.execute();
+                        touch.close();
+                    } catch (SQLiteException e) {
+                        LOGGER.error("Error updating tile access time", e);
+                    }
+                }
+            });
+            return mask;
+        } catch (SQLiteException e) {
+            LOGGER.error("Error reading cached tile", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Stores the coverage mask of a tile unless new points were explored after the rendering
+     * started. The mask is copied, it can be modified afterwards.
+     *
+     * @param generation the generation read with {@link #getGeneration()} before rendering
+     */
+    public void put(final int x, final int y, final int zoom, byte[] mask, final int generation) {
+        final byte[] copy;
+        synchronized (mask) {
+            copy = mask.clone();
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                // checked on the writer thread, after the invalidation of the new points
+                if (generation != mGeneration) {
+                    LOGGER.debug("Tile {} {} rendered with stale data, not storing", x, y);
+                    return;
+                }
+                try {
+                    byte[] data = deflate(copy);
+                    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                    SQLiteStatement insert = db.compileStatement(INSERT);
+                    bindKey(insert, 1, x, y, zoom);
+                    insert.bindBlob(4, data);
+                    insert.bindLong(5, System.currentTimeMillis());
+                    insert.executeInsert();
+                    insert.close();
+                    if (mSizeBytes < 0) {
+                        mSizeBytes = DatabaseUtils.longForQuery(db, "SELECT total(length(" + DATA
+                                + ")) FROM " + TABLE_NAME, null);
+                    } else {
+                        mSizeBytes += data.length;
+                    }
+                    if (mSizeBytes > MAX_SIZE_BYTES) {
+                        trim(db);
+                    }
+                } catch (SQLiteException e) {
+                    LOGGER.error("Error storing tile", e);
+                }
+            }
+        });
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Removes the tiles overlapped by the disc of a newly explored point.
+     */
+    @Override
+    public void visit(int latitudeE7, int longitudeE7) {
+        final double latitude = PointStore.fromE7(latitudeE7);
+        final double longitude = PointStore.fromE7(longitudeE7);
+        newGeneration(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    invalidate(latitude, longitude);
+                } catch (SQLiteException e) {
+                    LOGGER.error("Error invalidating tiles", e);
+                }
+            }
+        });
+    }
+
+    private void invalidate(double latitude, double longitude) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement delete = db.compileStatement(INVALIDATE);
+        int[] range = new int[4];
+        int removed = 0;
+        db.beginTransaction();
+        try {
+            for (int zoom = 0; zoom <= ExploredTileProvider.MAX_ZOOM; zoom++) {
+                TileBucketIndex.touchedTiles(latitude, longitude, zoom, range);
+                delete.bindLong(1, zoom);
+                delete.bindLong(2, range[0]);
+                delete.bindLong(3, range[1]);
+                delete.bindLong(4, range[2]);
+                delete.bindLong(5, range[3]);
+                removed += delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            delete.close();
+        }
+        mInvalidated.addAndGet(removed);
+        // sizes are counted again on the next store
+        mSizeBytes = -1;
+        LOGGER.debug("Removed {} cached tiles around {} {}", removed, latitude, longitude);
+    }
+
+    /**
+     * Removes the least recently read tiles until the stored size is below the trim ratio of
+     * the maximum size.
+     */
+    private void trim(SQLiteDatabase db) {
+        long target = (long) (MAX_SIZE_BYTES * TRIM_RATIO);
+        long removedBytes = 0;
+        long lastAccessed = 0;
+        Cursor cursor = db.rawQuery("SELECT " + ACCESSED + ", length(" + DATA + ") FROM "
+                + TABLE_NAME + " ORDER BY " + ACCESSED, null);
+        try {
+            while (mSizeBytes - removedBytes > target && cursor.moveToNext()) {
+                lastAccessed = cursor.getLong(0);
+                removedBytes += cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        int removed = db.delete(TABLE_NAME, ACCESSED + " <= ?",
+                new String[]{String.valueOf(lastAccessed)});
+        mSizeBytes = -1;
+        LOGGER.debug("Trimmed {} cached tiles, about {} bytes", removed, removedBytes);
+    }
+
+    private static String[] keyArguments(int x, int y, int zoom) {
+        return new String[]{String.valueOf(zoom), String.valueOf(x), String.valueOf(y)};
+    }
+
+    private static void bindKey(SQLiteStatement statement, int index, int x, int y, int zoom) {
+        statement.bindLong(index, zoom);
+        statement.bindLong(index + 1, x);
+        statement.bindLong(index + 2, y);
+    }
+
+    /**
+     * Compresses a mask, on the writer thread.
+     */
+    private byte[] deflate(byte[] mask) {
+        mDeflater.reset();
+        mDeflater.setInput(mask);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (length == mDeflateBuffer.length) {
+                byte[] buffer = new byte[mDeflateBuffer.length * 2];
+                System.arraycopy(mDeflateBuffer, 0, buffer, 0, length);
+                mDeflateBuffer = buffer;
+            }
+            length += mDeflater.deflate(mDeflateBuffer, length, mDeflateBuffer.length - length);
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(mDeflateBuffer, 0, data, 0, length);
+        return data;
+    }
+
+    /**
+     * @return the mask of a stored tile or null if the data is not a complete mask
+     */
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] mask = new byte[ExploredTileProvider.TILE_SIZE * ExploredTileProvider.TILE_SIZE];
+            int length = 0;
+            while (length < mask.length && !inflater.finished() && !inflater.needsInput()) {
+                length += inflater.inflate(mask, length, mask.length - length);
+            }
+            if (length != mask.length) {
+                LOGGER.error("Stored tile has {} bytes instead of {}", length, mask.length);
+                return null;
+            }
+            return mask;
+        } catch (DataFormatException e) {
+            LOGGER.error("Error decompressing stored tile", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    public int getInvalidatedCount() {
+        return mInvalidated.get();
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+
+        OpenHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            LOGGER.debug("Creating tile cache database");
+            db.execSQL("CREATE TABLE " + TABLE_NAME + "(" + ZOOM + " INTEGER, " + X + " INTEGER, "
+                    + Y + " INTEGER, " + DATA + " BLOB, " + ACCESSED + " INTEGER, PRIMARY KEY ("
+                    + ZOOM + ", " + X + ", " + Y + "))");
+            db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + ACCESSED + " ON " + TABLE_NAME + "("
+                    + ACCESSED + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            LOGGER.debug("Tile data version changed from {} to {}, dropping cached tiles",
+                    oldVersion, newVersion);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(db);
+        }
+
+        @Override
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            onUpgrade(db, oldVersion, newVersion);
+        }
+    }
+}
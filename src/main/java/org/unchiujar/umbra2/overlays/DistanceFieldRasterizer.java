@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.overlays;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders the fog of a tile from the distance of every pixel to the nearest explored point, an
+ * alternative to drawing the shaded discs of {@link FogRasterizer}. The distances are computed
+ * with an exact two pass Euclidean distance transform, along the rows then along the columns,
+ * and mapped to the falloff of a disc through a table, so a tile costs the same whatever the
+ * number of shading passes.
+ * <p/>
+ * Only the nearest point shades a pixel, overlapping discs do not darken each other. Adding a
+ * point to a rendered mask is then the minimum of the mask and the falloff of its disc, see
+ * {@link FogRasterizer#setNearest(boolean)}.
+ * <p/>
+ * A rasterizer holds the points of the tile being drawn and is not thread safe, use one per
+ * thread.
+ */
+public class DistanceFieldRasterizer implements PixelVisitor {
+    /**
+     * Steps per pixel of the falloff tables.
+     */
+    private static final int PROFILE_STEPS = 4;
+    private static final int MAX_PROFILES = 64;
+
+    private static final Map<Long, byte[]> PROFILES = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_PROFILES;
+        }
+    };
+
+    private final int mSize;
+
+    private byte[] mMask;
+    private int mOriginX;
+    private int mOriginY;
+    private int mRadius;
+    private int mPasses;
+    private int mShadeAlpha;
+
+    /**
+     * Points reaching the tile, packed by row then column relative to the tile.
+     */
+    private long[] mPoints = new long[64];
+    private int mCount;
+    /**
+     * Squared doubled distances along the rows, one row of the tile width per point row.
+     */
+    private float[] mRowDistances = new float[0];
+    private int[] mRows = new int[0];
+    private int[] mEnvelope = new int[0];
+    private double[] mBounds = new double[0];
+
+    /**
+     * @param size width and height of the tiles in pixels
+     */
+    public DistanceFieldRasterizer(int size) {
+        mSize = size;
+    }
+
+    /**
+     * Sets the mask drawn to and the tile it covers, and forgets the points of the previous tile.
+     *
+     * @param mask       the mask of the tile filled with the fog, size * size pixels
+     * @param radius     disc radius in pixels
+     * @param passes     shading passes of the discs
+     * @param shadeAlpha fog kept by each pass, out of 255
+     */
+    public void begin(byte[] mask, int tileX, int tileY, int radius, int passes, int shadeAlpha) {
+        mMask = mask;
+        mOriginX = tileX * mSize;
+        mOriginY = tileY * mSize;
+        mRadius = radius;
+        mPasses = passes;
+        mShadeAlpha = shadeAlpha;
+        mCount = 0;
+    }
+
+    /**
+     * Collects an explored point projected to world pixels, points too far to reach the tile are
+     * ignored.
+     */
+    @Override
+    public void visitPixel(int pixelX, int pixelY) {
+        int reach = mRadius + 1;
+        // the disc positions relative to the tile, offset to be positive
+        long x = pixelX - mOriginX + reach;
+        long y = pixelY - mOriginY + reach;
+        if (x < 0 || y < 0 || x >= mSize + 2 * reach || y >= mSize + 2 * reach) {
+            return;
+        }
+        if (mCount == mPoints.length) {
+            mPoints = Arrays.copyOf(mPoints, mCount * 2);
+        }
+        mPoints[mCount++] = (y << 32) | x;
+    }
+
+    /**
+     * Shades the mask with the falloff of the nearest point of every pixel.
+     */
+    public void finish() {
+        if (mCount == 0) {
+            return;
+        }
+        Arrays.sort(mPoints, 0, mCount);
+        int rows = transformRows();
+        byte[] profile = profile(mRadius, mPasses, mShadeAlpha);
+        int limit = profile.length - 1;
+        int offset = 2 * (mRadius + 1);
+        if (mEnvelope.length < rows) {
+            mEnvelope = new int[rows];
+            mBounds = new double[rows + 1];
+        }
+        int[] envelope = mEnvelope;
+        double[] bounds = mBounds;
+        byte[] mask = mMask;
+        for (int column = 0; column < mSize; column++) {
+            // lower envelope of the parabolas of the point rows over the column
+            int count = 0;
+            envelope[0] = 0;
+            bounds[0] = Double.NEGATIVE_INFINITY;
+            bounds[1] = Double.POSITIVE_INFINITY;
+            for (int row = 1; row < rows; row++) {
+                double intersection = intersection(envelope[count], row, column);
+                // the first bound is minus infinity, the first parabola is never removed
+                while (intersection <= bounds[count]) {
+                    count--;
+                    intersection = intersection(envelope[count], row, column);
+                }
+                count++;
+                envelope[count] = row;
+                bounds[count] = intersection;
+                bounds[count + 1] = Double.POSITIVE_INFINITY;
+            }
+            int current = 0;
+            for (int y = 0; y < mSize; y++) {
+                // doubled pixel center, relative to the offset disc positions
+                int center = 2 * y + 1 + offset;
+                while (bounds[current + 1] < center) {
+                    current++;
+                }
+                int row = envelope[current];
+                double dy = center - 2 * mRows[row];
+                double squared = mRowDistances[row * mSize + column] + dy * dy;
+                double position = Math.sqrt(squared) * PROFILE_STEPS / 2;
+                int step = (int) position;
+                if (step < limit) {
+                    int index = y * mSize + column;
+                    // interpolated between the steps
+                    int before = profile[step] & 0xff;
+                    int kept = (int) (before + ((profile[step + 1] & 0xff) - before)
+                            * (position - step) + 0.5d);
+                    mask[index] = (byte) (((mask[index] & 0xff) * kept + 127) / 255);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes for every point row the squared doubled distance of each tile column to the
+     * nearest point of the row.
+     *
+     * @return the number of point rows
+     */
+    private int transformRows() {
+        int offset = 2 * (mRadius + 1);
+        int rows = 0;
+        int first = 0;
+        while (first < mCount) {
+            int row = (int) (mPoints[first] >>> 32);
+            int last = first;
+            while (last + 1 < mCount && (int) (mPoints[last + 1] >>> 32) == row) {
+                last++;
+            }
+            if (mRows.length == rows) {
+                mRows = Arrays.copyOf(mRows, Math.max(16, rows * 2));
+            }
+            if (mRowDistances.length < (rows + 1) * mSize) {
+                mRowDistances = Arrays.copyOf(mRowDistances, Math.max(16, rows * 2) * mSize);
+            }
+            mRows[rows] = row;
+            // the points of the row are sorted by column, the nearest only moves right
+            int nearest = first;
+            for (int column = 0; column < mSize; column++) {
+                int center = 2 * column + 1 + offset;
+                int distance = Math.abs(center - 2 * (int) mPoints[nearest]);
+                while (nearest < last) {
+                    int next = Math.abs(center - 2 * (int) mPoints[nearest + 1]);
+                    if (next > distance) {
+                        break;
+                    }
+                    distance = next;
+                    nearest++;
+                }
+                mRowDistances[rows * mSize + column] = (float) distance * distance;
+            }
+            rows++;
+            first = last + 1;
+        }
+        return rows;
+    }
+
+    /**
+     * @return the doubled row where the parabola of the point row b gets lower than the one of a
+     */
+    private double intersection(int a, int b, int column) {
+        double rowA = 2 * mRows[a];
+        double rowB = 2 * mRows[b];
+        double fa = mRowDistances[a * mSize + column];
+        double fb = mRowDistances[b * mSize + column];
+        return ((fb + rowB * rowB) - (fa + rowA * rowA)) / (2 * (rowB - rowA));
+    }
+
+    /**
+     * Returns the fog kept by a disc by distance to its center, in 1 / PROFILE_STEPS pixel steps.
+     * The last step is outside the disc.
+     */
+    static byte[] profile(int radius, int passes, int shadeAlpha) {
+        long key = ((long) shadeAlpha << 40) | ((long) passes << 32) | radius;
+        synchronized (PROFILES) {
+            byte[] profile = PROFILES.get(key);
+            if (profile != null) {
+                return profile;
+            }
+        }
+        byte[] profile = new byte[(radius + 2) * PROFILE_STEPS + 1];
+        for (int step = 0; step < profile.length; step++) {
+            profile[step] = (byte) FogRasterizer.falloff((double) step / PROFILE_STEPS, 0, radius,
+                    passes, shadeAlpha);
+        }
+        synchronized (PROFILES) {
+            PROFILES.put(key, profile);
+        }
+        return profile;
+    }
+}
@@ -29,7 +29,7 @@
 package org.unchiujar.umbra2.overlays;
 
 import android.content.Context;
-import android.graphics.*;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.preference.PreferenceManager;
 import com.google.android.gms.maps.model.LatLng;
@@ -39,71 +39,168 @@ import com.google.android.gms.maps.model.TileProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unchiujar.umbra2.activities.Preferences;
-import org.unchiujar.umbra2.location.ApproximateLocation;
+import org.unchiujar.umbra2.activities.UmbraApplication;
+import org.unchiujar.umbra2.backend.PointStore;
 
-import java.io.ByteArrayOutputStream;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static android.graphics.Color.BLACK;
-import static android.graphics.Paint.ANTI_ALIAS_FLAG;
-import static com.google.maps.android.SphericalUtil.computeDistanceBetween;
-import static com.google.maps.android.SphericalUtil.computeOffset;
 import static org.unchiujar.umbra2.location.LocationOrder.METERS_RADIUS;
 
 public class ExploredTileProvider implements TileProvider {
-    private static final int SHADING_PASSES = 15;
     private static final Logger LOGGER = LoggerFactory.getLogger(ExploredTileProvider.class);
     public static final int RADIUS_SHADE_THRESHOLD = 3;
+    /**
+     * Highest zoom level tiles are requested for.
+     */
+    static final int MAX_ZOOM = 23;
+    /**
+     * Number of threads rendering tiles.
+     */
+    static final int RENDER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /**
+     * Number of served tiles kept for identical requests, more than a screen of tiles.
+     */
+    private static final int RECENT_TILES = 64;
+    /**
+     * Values of the fog renderer preference.
+     */
+    public static final String RENDERER_DISCS = "discs";
+    public static final String RENDERER_DISTANCE = "distance";
+    public static final String RENDERER_VECTOR = "vector";
+
+    private final TileCache mTileCache;
+    private final DiskTileCache mDiskTileCache;
+    private final DensityGrid mDensityGrid;
+    private final CoverageIndex mCoverageIndex;
+    private final TilePrerenderer mPrerenderer;
+    private final ViewportFeed mFeed;
+    /**
+     * Requests being served, later identical requests wait for them instead of rendering again.
+     */
+    private final ConcurrentHashMap<TileRequest, FutureTask<Tile>> mInFlight =
+            new ConcurrentHashMap<TileRequest, FutureTask<Tile>>();
+    /**
+     * Last served tiles, returned again to identical requests made right after.
+     */
+    private final Map<TileRequest, Tile> mRecentTiles =
+            new LinkedHashMap<TileRequest, Tile>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TileRequest, Tile> eldest) {
+                    return size() > RECENT_TILES;
+                }
+            };
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+    /**
+     * Number of the last visible region and of the last one whose explored points were set.
+     * Tiles are not drawn while they differ unless their points are loaded, see
+     * {@link #viewportChanged()}.
+     */
+    private final AtomicInteger mViewport = new AtomicInteger();
+    private volatile int mLoadedViewport;
+    private volatile boolean mDeferred;
+    private final AtomicLong mDeferredCount = new AtomicLong();
 
-    private static class TileCoordinates {
-        int x;
-        int y;
-        int zoom;
 
-        private TileCoordinates(int x, int y, int zoom) {
-            this.x = x;
-            this.y = y;
-            this.zoom = zoom;
+    /**
+     * Transparency level of explored area. Lower value means more transparent.
+     */
+    public static final int TRANSPARENCY = 170;
+    private PointStore mPoints = new PointStore();
+    /**
+     * Explored points grouped by tile, per zoom level, built lazily when a tile is drawn.
+     */
+    private final TileBucketIndex[] mBucketIndexes = new TileBucketIndex[MAX_ZOOM + 1];
+    /**
+     * Distance results of each thread measuring disc radii.
+     */
+    private static final ThreadLocal<float[]> DISTANCES = new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+            return new float[3];
         }
-
+    };
+    /**
+     * Blended copy of the mask being encoded, per thread.
+     */
+    private static final ThreadLocal<byte[]> BLENDED = new ThreadLocal<byte[]>() {
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            TileCoordinates that = (TileCoordinates) o;
-
-            if (x != that.x) return false;
-            if (y != that.y) return false;
-            return zoom == that.zoom;
-
+        protected byte[] initialValue() {
+            return new byte[TILE_SIZE * TILE_SIZE];
         }
-
+    };
+    /**
+     * Renders the tiles missing from the caches for all providers, at most one tile per core at
+     * a time whatever the number of threads requesting tiles.
+     */
+    private static final ExecutorService RENDER_EXECUTOR = Executors.newFixedThreadPool(
+            RENDER_THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "tile-render-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    /**
+     * Orders the renders of the render executor, closest to the camera target first.
+     */
+    private static final RenderQueue RENDER_QUEUE = new RenderQueue(RENDER_EXECUTOR);
+    /**
+     * Density bins of the heatmap tile being rendered, per thread.
+     */
+    private static final ThreadLocal<int[]> DENSITY_BINS = new ThreadLocal<int[]>() {
         @Override
-        public int hashCode() {
-            int result = x;
-            result = 31 * result + y;
-            result = 31 * result + zoom;
-            return result;
+        protected int[] initialValue() {
+            return new int[DensityGrid.BINS * DensityGrid.BINS];
         }
-    }
-
-    private ConcurrentHashMap<TileCoordinates, Bitmap> tilesCache = new ConcurrentHashMap<TileCoordinates, Bitmap>();
-
-
+    };
     /**
-     * Transparency level of explored area. Lower value means more transparent.
+     * Point decimators of the tiles being rendered, per thread.
      */
-    public static final int TRANSPARENCY = 170;
-    private static int mAlpha;
-    private List<ApproximateLocation> mLocations;
-    private Paint mRectPaint;
-
-    private Paint mClearPaint;
-
-    private Paint mShadePaint;
-
+    private static final ThreadLocal<PointDecimator> DECIMATORS = new ThreadLocal<PointDecimator>() {
+        @Override
+        protected PointDecimator initialValue() {
+            return new PointDecimator(TILE_SIZE);
+        }
+    };
+    private static final ThreadLocal<DistanceFieldRasterizer> DISTANCE_RASTERIZERS =
+            new ThreadLocal<DistanceFieldRasterizer>() {
+                @Override
+                protected DistanceFieldRasterizer initialValue() {
+                    return new DistanceFieldRasterizer(TILE_SIZE);
+                }
+            };
+    private static final ThreadLocal<PolygonRasterizer> POLYGON_RASTERIZERS =
+            new ThreadLocal<PolygonRasterizer>() {
+                @Override
+                protected PolygonRasterizer initialValue() {
+                    return new PolygonRasterizer(TILE_SIZE);
+                }
+            };
+    /**
+     * Rasterizer of each thread requesting tiles.
+     */
+    private static final ThreadLocal<FogRasterizer> RASTERIZERS = new ThreadLocal<FogRasterizer>() {
+        @Override
+        protected FogRasterizer initialValue() {
+            return new FogRasterizer(TILE_SIZE);
+        }
+    };
 
     public static final int TILE_SIZE = 128;
     private Context context;
@@ -111,178 +208,284 @@ public class ExploredTileProvider implements TileProvider {
 
     public ExploredTileProvider(Context context) {
         this.context = context;
+        UmbraApplication application = (UmbraApplication) context.getApplicationContext();
+        mTileCache = application.getTileCache();
+        mDiskTileCache = application.getDiskTileCache();
+        mDensityGrid = application.getDensityGrid();
+        mCoverageIndex = application.getCoverageIndex();
+        mPrerenderer = application.getTilePrerenderer();
+        mFeed = application.getViewportFeed();
         LOGGER.debug("Tile overlay constructed ");
-
-        // ========== PAINTS SETUP =========
-        mRectPaint = new Paint(ANTI_ALIAS_FLAG);
-        mRectPaint.setColor(BLACK);
-        mRectPaint.setStyle(Paint.Style.FILL_AND_STROKE);
-
-//                SRC         (1),
-//                DST_OVER    (4),
-//                DARKEN      (12),
-//                LIGHTEN     (13),
-//                SCREEN      (15),
-
-
-        mClearPaint = new Paint(ANTI_ALIAS_FLAG);
-        // set PorterDuff mode in order to create transparent holes in
-        // the canvas
-        // see http://developer.android.com/reference/android/graphics/PorterDuff.Mode.html
-        // see http://en.wikipedia.org/wiki/Alpha_compositing
-        // see http://groups.google.com/group/android-developers/browse_thread/thread/5b0a498664b17aa0/de4aab6fb7e97e38?lnk=gst&q=erase+transparent&pli=1
-        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
-        mClearPaint.setAlpha(255);
-        mClearPaint.setColor(BLACK);
-        mClearPaint.setStyle(Paint.Style.FILL_AND_STROKE);
-
-        mShadePaint = new Paint(ANTI_ALIAS_FLAG);
-        mShadePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
-
-        mShadePaint.setColor(BLACK);
-        mShadePaint.setStyle(Paint.Style.FILL);
-        mShadePaint.setAlpha(TRANSPARENCY);
-
-
-        pixelOrigin_ = new WorldCoordinate(TILE_SIZE / 2, TILE_SIZE / 2);
-        pixelsPerLonDegree_ = TILE_SIZE / 360d;
-        pixelsPerLonRadian_ = TILE_SIZE / (2 * Math.PI);
-
     }
 
     @Override
-    public Tile getTile(int x, int y, int zoom) {
-        mAlpha = 255 - PreferenceManager.getDefaultSharedPreferences(context).getInt(Preferences.TRANSPARENCY, 120);
-        mRectPaint.setAlpha(mAlpha);
-//        mRectPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST));
-
+    public Tile getTile(final int x, final int y, final int zoom) {
+        // read for every tile, concurrent tiles may see different values while they are changed
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final int alpha = 255 - preferences.getInt(Preferences.TRANSPARENCY, 120);
+        final TileEncoder encoder = TileEncoder.forMode(preferences.getString(
+                Preferences.TILE_ENCODING, TileEncoder.MODE_FAST));
+        String renderer = preferences.getString(Preferences.FOG_RENDERER, RENDERER_DISCS);
+        boolean distanceField = RENDERER_DISTANCE.equals(renderer);
+        if (mTileCache.setDistanceField(distanceField)) {
+            mDiskTileCache.setDistanceField(distanceField);
+        }
 
         LOGGER.debug("Getting tile for coordinates {} {} and zoom {}", x, y, zoom);
-        //create bitmap tile
-        Bitmap image = draw(x, y, zoom);
-
-        //create byte stream
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        image.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        mPrerenderer.tileRequested(zoom);
+        if (zoom <= DensityGrid.MAX_ZOOM && preferences.getBoolean(Preferences.HEATMAP, false)) {
+            return heatmapTile(x, y, zoom, alpha, encoder);
+        }
+        if (RENDERER_VECTOR.equals(renderer)) {
+            return vectorTile(x, y, zoom, alpha, encoder);
+        }
+        // tiles drawn without their points would be cached without their explored areas, the map
+        // requests them again when the overlay is refreshed after the points are loaded
+        if (mLoadedViewport != mViewport.get() && !isLoaded(x, y, zoom)) {
+            LOGGER.debug("Explored points of tile {} {} not loaded yet", x, y);
+            mDeferred = true;
+            mDeferredCount.incrementAndGet();
+            return null;
+        }
+        // most tiles are fully fogged, share a single encoded tile for them
+        if (!hasPointsAround(x, y, zoom)) {
+            LOGGER.debug("No explored points near tile, returning fog tile");
+            return fogTile(encoder, alpha);
+        }
 
-        //return tile
-        return new Tile(TILE_SIZE, TILE_SIZE, stream.toByteArray());
+        // both overlays request every tile, usually at the same time, they share one tile
+        final TileRequest request = new TileRequest(x, y, zoom, alpha, encoder,
+                mTileCache.getGeneration());
+        Tile tile;
+        synchronized (mRecentTiles) {
+            tile = mRecentTiles.get(request);
+        }
+        if (tile != null) {
+            mReused.incrementAndGet();
+            return tile;
+        }
+        FutureTask<Tile> task = new FutureTask<Tile>(new Callable<Tile>() {
+            @Override
+            public Tile call() {
+                Tile rendered = cachedOrRendered(x, y, zoom, alpha, encoder);
+                if (rendered != null) {
+                    synchronized (mRecentTiles) {
+                        mRecentTiles.put(request, rendered);
+                    }
+                }
+                return rendered;
+            }
+        });
+        FutureTask<Tile> flight = mInFlight.putIfAbsent(request, task);
+        if (flight == null) {
+            flight = task;
+            task.run();
+            mInFlight.remove(request, task);
+        } else {
+            LOGGER.debug("Tile {} {} already being rendered, waiting for it", x, y);
+            mCoalesced.incrementAndGet();
+        }
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.error("Error rendering tile", e.getCause());
+            return null;
+        }
     }
 
     /**
-     * Get the dimensions of the Tile in LatLng coordinates
+     * Encodes the tile from the memory cache or renders it on the render executor.
      */
-    public LatLngBounds getTileBounds(int x, int y, int zoom) {
-        int noTiles = (1 << zoom);
-        double longitudeSpan = 360.0 / noTiles;
-        double longitudeMin = -180.0 + x * longitudeSpan;
-
-        double mercatorMax = 180 - (((double) y) / noTiles) * 360;
-        double mercatorMin = 180 - (((double) y + 1) / noTiles) * 360;
-        double latitudeMax = toLatitude(mercatorMax);
-        double latitudeMin = toLatitude(mercatorMin);
+    private Tile cachedOrRendered(final int x, final int y, final int zoom, final int alpha,
+                                  final TileEncoder encoder) {
+        byte[] mask = mTileCache.get(x, y, zoom);
+        if (mask != null) {
+            return encode(encoder, mask, alpha);
+        }
 
-        return new LatLngBounds(new LatLng(latitudeMin, longitudeMin), new LatLng(latitudeMax, longitudeMin + longitudeSpan));
+        Future<Tile> render = RENDER_QUEUE.submit(x, y, zoom, new Callable<Tile>() {
+            @Override
+            public Tile call() {
+                return render(x, y, zoom, alpha, encoder);
+            }
+        });
+        try {
+            return render.get();
+        } catch (CancellationException e) {
+            // the tile left the visible region, requested again by the next overlay refresh
+            LOGGER.debug("Render of tile {} {} cancelled", x, y);
+            mDeferred = true;
+            return null;
+        } catch (InterruptedException e) {
+            render.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.error("Error rendering tile", e.getCause());
+            return null;
+        }
     }
 
-    public static double toLatitude(double mercator) {
-        double radians = Math.atan(Math.exp(Math.toRadians(mercator)));
-        return Math.toDegrees(2 * radians) - 90;
+    /**
+     * Renders the explored points density of a zoomed out tile over the fog, from the counts kept
+     * by the density grid.
+     */
+    private Tile heatmapTile(int x, int y, int zoom, int alpha, TileEncoder encoder) {
+        int[] bins = DENSITY_BINS.get();
+        int maxCount = mDensityGrid.copyBins(x, y, zoom, bins);
+        if (maxCount == 0) {
+            return fogTile(encoder, alpha);
+        }
+        byte[] indexes = BLENDED.get();
+        DensityGrid.render(bins, maxCount, indexes, TILE_SIZE);
+        int[] palette = DensityGrid.palette(FogRasterizer.blend(alpha, alpha));
+        return new Tile(TILE_SIZE, TILE_SIZE, encoder.encode(indexes, TILE_SIZE, palette));
     }
 
     /**
-     * Return value reduced to min and max if outside one of these bounds.
+     * Fills the explored outlines of the coverage index, without visiting the explored points.
      */
-    private double bound(double value, double min, double max) {
-        value = Math.max(value, min);
-        value = Math.min(value, max);
-        return value;
+    private Tile vectorTile(int x, int y, int zoom, int alpha, TileEncoder encoder) {
+        PolygonRasterizer rasterizer = POLYGON_RASTERIZERS.get();
+        rasterizer.begin();
+        if (!mCoverageIndex.addTo(rasterizer, x, y, zoom)) {
+            return fogTile(encoder, alpha);
+        }
+        return encode(encoder, rasterizer.finish(), alpha);
     }
 
-
     /**
-     * Get the coordinates in a system describing the whole globe in a
-     * coordinate range from 0 to TILE_SIZE (type double).
-     * <p/>
-     * Takes the resulting point as parameter, to avoid creation of new objects.
+     * Renders and encodes a tile, on a render thread.
      */
-    private WorldCoordinate latLngToWorldCoordinates(LatLng latLng) {
-
-        double x = pixelOrigin_.x + latLng.longitude * pixelsPerLonDegree_;
-
-        // Truncating to 0.9999 effectively limits latitude to 89.189. This is
-        // about a third of a tile past the edge of the world tile.
-        double siny = bound(Math.sin(Math.toRadians(latLng.latitude)), -0.9999,
-                0.9999);
-        double y = pixelOrigin_.y + 0.5 * Math.log((1 + siny) / (1 - siny))
-                * -pixelsPerLonRadian_;
-
-        return new WorldCoordinate(x, y);
+    private Tile render(int x, int y, int zoom, int alpha, TileEncoder encoder) {
+        byte[] mask = coverage(x, y, zoom, mTileCache.getGeneration(),
+                mDiskTileCache.getGeneration());
+        return mask == null ? fogTile(encoder, alpha) : encode(encoder, mask, alpha);
     }
 
-
     /**
-     * Calculate the pixel coordinates inside a tile, relative to the left upper
-     * corner (origin) of the tile.
+     * Returns the coverage mask of a tile from the caches. A tile missing from the caches is
+     * drawn, or below the pyramid base zoom downsampled from the tiles of the next zoom level,
+     * then cached.
+     *
+     * @param generation     the tile cache generation, read before the explored points
+     * @param diskGeneration the disk tile cache generation, read before the explored points
+     * @return the mask or null for a fully fogged tile, without explored points near it
      */
-    public Point latLngToTilePoint(LatLng latLng, int x, int y, int zoom) {
-
-        WorldCoordinate worldCoordinates = latLngToWorldCoordinates(latLng);
-        Point pixelCoordinates = worldToPixelCoordinates(worldCoordinates, zoom);
-
-        pixelCoordinates.x -= x * TILE_SIZE;
-        pixelCoordinates.y -= y * TILE_SIZE;
-
-        return pixelCoordinates;
+    byte[] coverage(int x, int y, int zoom, int generation, int diskGeneration) {
+        if (!hasPointsAround(x, y, zoom)) {
+            return null;
+        }
+        byte[] mask = mTileCache.get(x, y, zoom);
+        if (mask != null) {
+            return mask;
+        }
+        mask = mDiskTileCache.get(x, y, zoom);
+        if (mask != null) {
+            LOGGER.debug("Using tile stored on disk");
+            mTileCache.put(x, y, zoom, mask, generation);
+            return mask;
+        }
+        mask = zoom < TilePyramid.BASE_ZOOM ? downsample(x, y, zoom, generation, diskGeneration)
+                : draw(x, y, zoom);
+        mTileCache.put(x, y, zoom, mask, generation);
+        mDiskTileCache.put(x, y, zoom, mask, diskGeneration);
+        return mask;
     }
 
     /**
-     * Transform the world coordinates into pixel-coordinates relative to the
-     * whole tile-area. (i.e. the coordinate system that spans all tiles.)
-     * <p/>
+     * Builds the coverage mask of a tile from the four tiles of the next zoom level.
      */
-    private Point worldToPixelCoordinates(WorldCoordinate worldCoord, int zoom) {
-        int numTiles = 1 << zoom;
-        return new Point((int) (worldCoord.x * numTiles), (int) (worldCoord.y * numTiles));
+    private byte[] downsample(int x, int y, int zoom, int generation, int diskGeneration) {
+        LOGGER.debug("Downsampling tile {} {} at zoom {}", x, y, zoom);
+        byte[] mask = new byte[TILE_SIZE * TILE_SIZE];
+        for (int childX = 2 * x; childX <= 2 * x + 1; childX++) {
+            for (int childY = 2 * y; childY <= 2 * y + 1; childY++) {
+                byte[] child = coverage(childX, childY, zoom + 1, generation, diskGeneration);
+                TilePyramid.downsample(child, childX, childY, mask, TILE_SIZE);
+            }
+        }
+        return mask;
     }
 
-
     /**
-     * A Point in an x/y coordinate system with coordinates of type double
+     * @return true if explored points are close enough to the tile for their discs to reach it
      */
-    public static class WorldCoordinate {
-        double x;
-        double y;
+    private boolean hasPointsAround(int x, int y, int zoom) {
+        int ring = Math.max(1, (discRadius(x, y, zoom) + TILE_SIZE - 1) / TILE_SIZE);
+        return bucketIndex(zoom).countAround(x, y, ring) > 0;
+    }
 
-        public WorldCoordinate(double x, double y) {
-            this.x = x;
-            this.y = y;
+    /**
+     * @return true if the explored points of the tile and of the discs reaching it are loaded
+     */
+    private boolean isLoaded(int x, int y, int zoom) {
+        PointStore points;
+        synchronized (this) {
+            points = mPoints;
         }
+        LatLngBounds bounds = getTileBounds(x, y, zoom);
+        return mFeed.isLoaded(points, bounds.southwest.latitude, bounds.southwest.longitude,
+                bounds.northeast.latitude, bounds.northeast.longitude);
     }
 
+    /**
+     * Encodes a drawn tile mask, after applying the fog alpha and blending it over itself. This is
+     * done on a copy so the cached mask can still be updated with new discs.
+     */
+    private static Tile encode(TileEncoder encoder, byte[] mask, int alpha) {
+        byte[] blended = BLENDED.get();
+        synchronized (mask) {
+            System.arraycopy(mask, 0, blended, 0, blended.length);
+        }
+        FogRasterizer.compose(blended, alpha);
+        return new Tile(TILE_SIZE, TILE_SIZE, encoder.encode(blended, TILE_SIZE));
+    }
 
-    public Bitmap draw(int x, int y, int zoom) {
-        LOGGER.debug("Drawing tile...");
-
-        Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+    /**
+     * Returns the encoded tile for a tile without explored area, shared by all tiles of the
+     * transparency level. A fully transparent fog needs no tile at all.
+     */
+    private static Tile fogTile(TileEncoder encoder, int alpha) {
+        if (alpha == 0) {
+            return NO_TILE;
+        }
+        return new Tile(TILE_SIZE, TILE_SIZE,
+                encoder.flatTile(FogRasterizer.blend(alpha, alpha), TILE_SIZE));
+    }
 
-        LatLngBounds bounds = getTileBounds(x, y, zoom);
+    /**
+     * Get the dimensions of the Tile in LatLng coordinates
+     */
+    public static LatLngBounds getTileBounds(int x, int y, int zoom) {
+        int noTiles = (1 << zoom);
+        double longitudeSpan = 360.0 / noTiles;
+        double longitudeMin = -180.0 + x * longitudeSpan;
 
+        double mercatorMax = 180 - (((double) y) / noTiles) * 360;
+        double mercatorMin = 180 - (((double) y + 1) / noTiles) * 360;
+        double latitudeMax = toLatitude(mercatorMax);
+        double latitudeMin = toLatitude(mercatorMin);
 
-        LatLng center = bounds.getCenter();
-        double diagonal = computeDistanceBetween(bounds.northeast, bounds.southwest) * 2;
-        LatLngBounds enlargedBounds = new LatLngBounds.Builder().
-                include(computeOffset(center, diagonal, 0)).
-                include(computeOffset(center, diagonal, 90)).
-                include(computeOffset(center, diagonal, 180)).
-                include(computeOffset(center, diagonal, 270)
-                ).build();
+        return new LatLngBounds(new LatLng(latitudeMin, longitudeMin), new LatLng(latitudeMax, longitudeMin + longitudeSpan));
+    }
 
+    public static double toLatitude(double mercator) {
+        double radians = Math.atan(Math.exp(Math.toRadians(mercator)));
+        return Math.toDegrees(2 * radians) - 90;
+    }
 
-        LOGGER.debug("Tile bounds are {}", bounds);
-        LOGGER.debug("Enlarged tile bounds are {}", enlargedBounds);
+    /**
+     * Draws a full fog and the explored discs of a tile into a mask, without the fog alpha and the
+     * final blending applied when the tile is encoded.
+     */
+    public byte[] draw(int x, int y, int zoom) {
+        LOGGER.debug("Drawing tile...");
 
-        int passes = zoom < 14 ? 1 : zoom - 8;
+        int passes = shadingPasses(zoom);
         LOGGER.debug("Shading passes {}  ", passes);
 
         // zoom level, in the range of 2.0 to 21.0. Values below this range are set to 2.0,
@@ -292,61 +495,120 @@ public class ExploredTileProvider implements TileProvider {
         // the size of the displayed area is dependent on the zoom level
         // 2 - 21 levels
 
-        final double pixelsMeter = pixelsPerMeter(TILE_SIZE,
-                new LatLng(bounds.southwest.latitude, bounds.southwest.longitude),
-                new LatLng(bounds.northeast.latitude, bounds.southwest.longitude));
-        int radius = (int) (METERS_RADIUS * 2 * pixelsMeter);
-
-        radius = (radius <= RADIUS_SHADE_THRESHOLD) ? RADIUS_SHADE_THRESHOLD : radius;
-
-        LOGGER.debug("View distance is {} meters, radius in pixels is {} pixel per meter is {}", METERS_RADIUS, radius, pixelsMeter);
-
-
-        Canvas canvas = new Canvas(bitmap);
-        // TODO check is width, height is always the same - rotation may be a problem
-        Rect mScreenCover = new Rect(0, 0, TILE_SIZE, TILE_SIZE);
-
-
-        canvas.drawRect(mScreenCover, mRectPaint);
-        LOGGER.debug("Processing locations {}", mLocations);
-        for (ApproximateLocation location : mLocations) {
-            // Log.v(TAG, "GeoPoint to screen point: " + mTempPoint);
-            // for display use only visible points
-
-            //TODO optimize this
-            LatLng point = new LatLng(location.getLatitude(), location.getLongitude());
-            if (enlargedBounds.contains(point)) {
-                drawShadedDisc(radius, passes, latLngToTilePoint(point, x, y, zoom), canvas);
-            }
-
+        int radius = discRadius(x, y, zoom);
+
+        LOGGER.debug("View distance is {} meters, radius in pixels is {}", METERS_RADIUS, radius);
+
+        byte[] mask = new byte[TILE_SIZE * TILE_SIZE];
+        FogRasterizer rasterizer = RASTERIZERS.get();
+        rasterizer.begin(mask, x, y, zoom, radius, passes, TRANSPARENCY);
+        rasterizer.fill(255);
+        // for display use only the points in the tile and in the
+        // neighbouring tiles reachable by a disc
+        TileBucketIndex index = bucketIndex(zoom);
+        int ring = Math.max(1, (radius + TILE_SIZE - 1) / TILE_SIZE);
+        LOGGER.debug("Processing points of {} in {} tiles ring", index.size(), ring);
+        if (mTileCache.isDistanceField()) {
+            DistanceFieldRasterizer distanceRasterizer = DISTANCE_RASTERIZERS.get();
+            distanceRasterizer.begin(mask, x, y, radius, passes, TRANSPARENCY);
+            index.forEachPixelAround(x, y, ring, distanceRasterizer);
+            distanceRasterizer.finish();
+            return mask;
         }
+        // points closer than a fraction of the radius are drawn as one disc
+        PointDecimator decimator = DECIMATORS.get();
+        decimator.begin(x, y, radius);
+        index.forEachPixelAround(x, y, ring, decimator);
+        int discs = decimator.drawTo(rasterizer);
+        LOGGER.debug("Drew {} discs for {} points", discs, decimator.getVisitedCount());
+
+        return mask;
+    }
 
-        canvas.drawBitmap(bitmap, 0, 0, mRectPaint);
+    /**
+     * Returns the tile buckets of the explored points for the zoom level. Points added to the
+     * explored points are appended to the buckets, they are built again if the explored points
+     * were replaced or too many points were added.
+     */
+    private synchronized TileBucketIndex bucketIndex(int zoom) {
+        TileBucketIndex index = mBucketIndexes[zoom];
+        TileBucketIndex updated = index == null ? null : index.updated(mPoints);
+        if (updated == null) {
+            updated = TileBucketIndex.build(mPoints, zoom);
+            LOGGER.debug("Built tile buckets for {} points at zoom {}", updated.size(), zoom);
+        }
+        mBucketIndexes[zoom] = updated;
+        return updated;
+    }
 
+    public synchronized void setExplored(PointStore points, int zoom) {
+        this.mPoints = points;
+        LOGGER.debug("Explored size is:{} ", this.mPoints.size());
 
-        tilesCache.put(new TileCoordinates(x, y, zoom), bitmap);
+//        for (Location location : mLocations) {
+//            updateTile(LocationUtilities.locationToLatLng(location), zoom);
+//        }
+    }
 
+    /**
+     * Sets the explored points loaded for a visible region.
+     *
+     * @param viewport the number of the visible region, read with {@link #getViewport()} before
+     *                 loading the points
+     */
+    public synchronized void setExplored(PointStore points, int zoom, int viewport) {
+        setExplored(points, zoom);
+        mLoadedViewport = viewport;
+    }
 
-        return bitmap;
+    /**
+     * Records a change of the visible region. Until its explored points are set the tiles whose
+     * points are not loaded are not drawn, the map gets no tile and requests them again later.
+     * Tiles closest to the camera target are rendered first and the queued renders of tiles no
+     * longer visible, or of other zoom levels than the camera zoom, are cancelled.
+     *
+     * @return the number of the visible region
+     */
+    public int viewportChanged(LatLng target, float zoom, LatLngBounds visible) {
+        RENDER_QUEUE.setViewport(target.latitude, target.longitude, zoom,
+                visible.southwest.latitude, visible.southwest.longitude,
+                visible.northeast.latitude, visible.northeast.longitude);
+        return mViewport.incrementAndGet();
     }
 
+    public int getViewport() {
+        return mViewport.get();
+    }
 
-    private WorldCoordinate pixelOrigin_;
-    private double pixelsPerLonDegree_;
-    private double pixelsPerLonRadian_;
+    /**
+     * @return true if tiles were not drawn since the last call because their explored points were
+     * not loaded
+     */
+    public boolean takeDeferred() {
+        boolean deferred = mDeferred;
+        mDeferred = false;
+        return deferred;
+    }
 
 
-    public void setExplored(List<ApproximateLocation> locations, int zoom) {
-        this.mLocations = locations;
-        LOGGER.debug("Explored size is:{} ", this.mLocations.size());
+    /**
+     * Radius in pixels of the disc drawn around each explored point on the tile.
+     */
+    static int discRadius(int x, int y, int zoom) {
+        // measured along the west edge of the tile, without creating the tile bounds
+        int noTiles = 1 << zoom;
+        double longitude = -180.0 + x * (360.0 / noTiles);
+        double latitudeMax = MercatorProjection.latitude((double) y / noTiles);
+        double latitudeMin = MercatorProjection.latitude(((double) y + 1) / noTiles);
+        float[] results = DISTANCES.get();
+        Location.distanceBetween(latitudeMin, longitude, latitudeMax, longitude, results);
+        final double pixelsMeter = TILE_SIZE / results[0];
+        int radius = (int) (METERS_RADIUS * 2 * pixelsMeter);
 
-//        for (Location location : mLocations) {
-//            updateTile(LocationUtilities.locationToLatLng(location), zoom);
-//        }
+        return (radius <= RADIUS_SHADE_THRESHOLD) ? RADIUS_SHADE_THRESHOLD : radius;
     }
 
-
-    public double pixelsPerMeter(int width, LatLng start, LatLng stop) {
+    public static double pixelsPerMeter(int width, LatLng start, LatLng stop) {
         //calculate distance in meters
         float[] results = new float[3];
         Location.distanceBetween(start.latitude, start.longitude, stop.latitude, stop.longitude, results);
@@ -360,52 +622,96 @@ public class ExploredTileProvider implements TileProvider {
      * after a certain zoom level only clear the area instead of
      * shading.
      */
+    static int shadingPasses(int zoom) {
+        return zoom < 14 ? 1 : zoom - 8;
+    }
 
-    private void drawShadedDisc(int radius, int passes, Point currentPoint, Canvas canvas) {
-        LOGGER.trace("Drawing radius {} with passes {} for point {}", radius, passes, currentPoint);
-        int x = currentPoint.x;
-        int y = currentPoint.y;
-        // if the passes are only one do not shade, just clear
-//        if (passes == 1) {
-//            canvas.drawCircle(x, y, radius, mClearPaint);
-//            return;
-//        }
-
-        for (int i = 0; i < passes; i++) {
-            canvas.drawCircle(x, y, (SHADING_PASSES - i) * radius / SHADING_PASSES * 0.8f + radius * 0.2f, mShadePaint);
-        }
+    /**
+     * @return the number of requests that waited for an identical request being served
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
     }
 
-    public void updateTile(LatLng coordinates, int zoom) {
-        // find tile to update
-        Point pixelCoordinates = worldToPixelCoordinates(latLngToWorldCoordinates(coordinates), zoom);
+    /**
+     * @return the number of requests served with the tile of an identical earlier request
+     */
+    public long getReusedCount() {
+        return mReused.get();
+    }
 
-        int x = pixelCoordinates.x / TILE_SIZE;
-        int y = pixelCoordinates.y / TILE_SIZE;
+    /**
+     * @return the number of tiles not drawn because their explored points were not loaded
+     */
+    public long getDeferredCount() {
+        return mDeferredCount.get();
+    }
 
+    /**
+     * @return the number of tiles waiting for a render thread
+     */
+    public static int getRenderQueueDepth() {
+        return RENDER_QUEUE.getDepth();
+    }
 
-        LatLngBounds bounds = getTileBounds(x, y, zoom);
+    /**
+     * @return the number of tile renders cancelled because the tile left the visible region
+     */
+    public static long getCancelledRenderCount() {
+        return RENDER_QUEUE.getCancelledCount();
+    }
 
-        Bitmap bitmap = tilesCache.get(new TileCoordinates(x, y, zoom));
+    /**
+     * @return the average time tiles waited for a render thread, in milliseconds
+     */
+    public static long getAverageRenderWait() {
+        return RENDER_QUEUE.getAverageWait();
+    }
 
-        if (bitmap == null) {
-            LOGGER.debug("No bitmap tile cached, doing nothing");
-            return;
+    /**
+     * A tile request, identical requests get the same tile. The tile cache generation is the
+     * version of the explored data.
+     */
+    private static final class TileRequest {
+        private final int mX;
+        private final int mY;
+        private final int mZoom;
+        private final int mAlpha;
+        private final TileEncoder mEncoder;
+        private final int mGeneration;
+
+        TileRequest(int x, int y, int zoom, int alpha, TileEncoder encoder, int generation) {
+            mX = x;
+            mY = y;
+            mZoom = zoom;
+            mAlpha = alpha;
+            mEncoder = encoder;
+            mGeneration = generation;
         }
 
-        LOGGER.debug("Found bitmap for tile {} {} updating...", x, y);
-
-        Canvas canvas = new Canvas(bitmap);
-
-        final double pixelsMeter = pixelsPerMeter(TILE_SIZE,
-                new LatLng(bounds.southwest.latitude, bounds.southwest.longitude),
-                new LatLng(bounds.northeast.latitude, bounds.southwest.longitude));
-        int radius = (int) (METERS_RADIUS * 2 * pixelsMeter);
-
-        radius = (radius <= 3) ? 3 : radius;
-        int passes = zoom < 14 ? 1 : zoom - 8;
-
-        drawShadedDisc(radius, passes, latLngToTilePoint(coordinates, x, y, zoom), canvas);
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileRequest)) {
+                return false;
+            }
+            TileRequest other = (TileRequest) o;
+            return mX == other.mX && mY == other.mY && mZoom == other.mZoom
+                    && mAlpha == other.mAlpha && mEncoder == other.mEncoder
+                    && mGeneration == other.mGeneration;
+        }
 
+        @Override
+        public int hashCode() {
+            int result = mX;
+            result = 31 * result + mY;
+            result = 31 * result + mZoom;
+            result = 31 * result + mAlpha;
+            result = 31 * result + mEncoder.hashCode();
+            result = 31 * result + mGeneration;
+            return result;
+        }
     }
 }
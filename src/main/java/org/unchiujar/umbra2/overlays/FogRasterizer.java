@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.support.v4.util.LruCache;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Renders the fog of a tile into an alpha mask, one byte per pixel, row by row. It does not use
+ * any Android class so it can be run and profiled on a desktop JVM.
+ * <p/>
+ * The mask is filled with the fog alpha and every explored point multiplies the fog under its
+ * disc by the shaded falloff of the disc. Tiles are drawn with a full fog, as coverage masks
+ * independent of the fog transparency which is applied by {@link #compose(byte[], int)}. A
+ * falloff is made of concentric antialiased passes, each keeping shade alpha / 255 of the fog,
+ * the same circles drawn by the Canvas implementation. Falloffs are computed once per radius,
+ * passes and shade alpha and kept as stamps.
+ * <p/>
+ * A rasterizer holds the state of the tile being drawn and is not thread safe, use one per thread.
+ * It visits points and projected pixels so it can be passed directly to the point stores and
+ * indexes.
+ */
+public class FogRasterizer implements PointVisitor, PixelVisitor {
+    /**
+     * Number of passes of the widest falloff, the pass radii shrink by 1 / SHADING_PASSES of the
+     * disc radius.
+     */
+    private static final int SHADING_PASSES = 15;
+    /**
+     * Discs wider than this are computed per pixel instead of being kept as stamps.
+     */
+    private static final int MAX_STAMP_RADIUS = 256;
+    /**
+     * Bytes kept in stamps, a handful of the widest stamps or many of the small ones.
+     */
+    private static final int MAX_STAMP_BYTES = 4 * 1024 * 1024;
+
+    private static final LruCache<Long, byte[]> STAMPS = new LruCache<Long, byte[]>(MAX_STAMP_BYTES) {
+        @Override
+        protected int sizeOf(Long key, byte[] stamp) {
+            return stamp.length;
+        }
+    };
+
+    /**
+     * Lookup tables of {@link #compose(byte[], int)}, by fog alpha.
+     */
+    private static final AtomicReferenceArray<byte[]> COMPOSE_TABLES =
+            new AtomicReferenceArray<byte[]>(256);
+    /**
+     * Lookup tables of the fog kept by several discs at the same place, by number of discs.
+     */
+    private static final AtomicReferenceArray<byte[]> POWER_TABLES =
+            new AtomicReferenceArray<byte[]>(64);
+
+    private final int mSize;
+
+    private byte[] mMask;
+    private double mWorldSize;
+    private int mOriginX;
+    private int mOriginY;
+    private int mRadius;
+    private int mPasses;
+    private int mShadeAlpha;
+    private boolean mNearest;
+
+    /**
+     * @param size width and height of the tiles in pixels
+     */
+    public FogRasterizer(int size) {
+        mSize = size;
+    }
+
+    /**
+     * Sets the mask drawn to and the tile it covers.
+     *
+     * @param mask       the mask of the tile, size * size pixels
+     * @param radius     disc radius in pixels
+     * @param passes     shading passes of the discs
+     * @param shadeAlpha fog kept by each pass, out of 255
+     */
+    public void begin(byte[] mask, int tileX, int tileY, int zoom, int radius, int passes,
+                      int shadeAlpha) {
+        mMask = mask;
+        mWorldSize = (double) mSize * (1 << zoom);
+        mOriginX = tileX * mSize;
+        mOriginY = tileY * mSize;
+        mRadius = radius;
+        mPasses = passes;
+        mShadeAlpha = shadeAlpha;
+        mNearest = false;
+    }
+
+    /**
+     * Makes the discs drawn until the next {@link #begin} keep the least fog of the mask and the
+     * disc instead of multiplying them, adding points to masks of the
+     * {@link DistanceFieldRasterizer}.
+     */
+    public void setNearest(boolean nearest) {
+        mNearest = nearest;
+    }
+
+    /**
+     * Covers the whole tile with fog.
+     */
+    public void fill(int alpha) {
+        byte value = (byte) alpha;
+        byte[] mask = mMask;
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = value;
+        }
+    }
+
+    @Override
+    public void visit(int latitudeE7, int longitudeE7) {
+        drawPoint(PointStore.fromE7(latitudeE7), PointStore.fromE7(longitudeE7));
+    }
+
+    /**
+     * Clears the fog under the disc of an explored point, projected on the tile.
+     */
+    public void drawPoint(double latitude, double longitude) {
+        int x = (int) (MercatorProjection.worldX(longitude) * mWorldSize) - mOriginX;
+        int y = (int) (MercatorProjection.worldY(latitude) * mWorldSize) - mOriginY;
+        drawDisc(x, y);
+    }
+
+    /**
+     * Clears the fog under the disc of an explored point already projected to world pixels.
+     */
+    @Override
+    public void visitPixel(int pixelX, int pixelY) {
+        drawDisc(pixelX - mOriginX, pixelY - mOriginY);
+    }
+
+    /**
+     * Clears the fog under a disc centered on the corner of the pixel (x, y), the same position
+     * as a circle drawn at (x, y) on a Canvas.
+     */
+    public void drawDisc(int x, int y) {
+        drawDisc(x, y, 1);
+    }
+
+    /**
+     * Clears the fog under count discs at the same position, as if each was drawn in turn.
+     */
+    public void drawDisc(int x, int y, int count) {
+        int radius = mRadius;
+        int offset = radius + 1;
+        int left = x - offset;
+        int top = y - offset;
+        int stampSize = 2 * offset + 1;
+        if (left >= mSize || top >= mSize || left + stampSize <= 0 || top + stampSize <= 0) {
+            return;
+        }
+        byte[] power = count > 1 && !mNearest ? powerTable(count) : null;
+        if (radius > MAX_STAMP_RADIUS) {
+            drawFalloff(x, y, power);
+            return;
+        }
+        byte[] stamp = stamp(radius, mPasses, mShadeAlpha);
+        byte[] mask = mMask;
+        int fromX = Math.max(0, left);
+        int toX = Math.min(mSize, left + stampSize);
+        int fromY = Math.max(0, top);
+        int toY = Math.min(mSize, top + stampSize);
+        for (int row = fromY; row < toY; row++) {
+            int maskIndex = row * mSize + fromX;
+            int stampIndex = (row - top) * stampSize + fromX - left;
+            for (int column = fromX; column < toX; column++, maskIndex++, stampIndex++) {
+                int kept = stamp[stampIndex] & 0xff;
+                if (power != null) {
+                    kept = power[kept] & 0xff;
+                }
+                if (kept == 255) {
+                    continue;
+                }
+                if (mNearest) {
+                    if (kept < (mask[maskIndex] & 0xff)) {
+                        mask[maskIndex] = (byte) kept;
+                    }
+                } else {
+                    mask[maskIndex] = (byte) (((mask[maskIndex] & 0xff) * kept + 127) / 255);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a disc too wide for a stamp, computing the falloff of the covered pixels only.
+     */
+    private void drawFalloff(int x, int y, byte[] power) {
+        byte[] mask = mMask;
+        int fromX = Math.max(0, x - mRadius - 1);
+        int toX = Math.min(mSize, x + mRadius + 1);
+        int fromY = Math.max(0, y - mRadius - 1);
+        int toY = Math.min(mSize, y + mRadius + 1);
+        for (int row = fromY; row < toY; row++) {
+            for (int column = fromX; column < toX; column++) {
+                int kept = falloff(column + 0.5d - x, row + 0.5d - y, mRadius, mPasses, mShadeAlpha);
+                if (power != null) {
+                    kept = power[kept] & 0xff;
+                }
+                int index = row * mSize + column;
+                if (mNearest) {
+                    mask[index] = (byte) Math.min(mask[index] & 0xff, kept);
+                } else {
+                    mask[index] = (byte) (((mask[index] & 0xff) * kept + 127) / 255);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fog kept under a pixel by all the passes of a disc.
+     *
+     * @param dx horizontal distance from the disc center to the pixel center
+     * @param dy vertical distance from the disc center to the pixel center
+     * @return the kept fog, out of 255
+     */
+    static int falloff(double dx, double dy, int radius, int passes, int shadeAlpha) {
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        double cleared = 1 - shadeAlpha / 255d;
+        double kept = 1;
+        for (int i = 0; i < passes; i++) {
+            float passRadius = (SHADING_PASSES - i) * radius / SHADING_PASSES * 0.8f + radius * 0.2f;
+            // antialiased pixel coverage of the pass
+            double coverage = Math.max(0, Math.min(1, passRadius - distance + 0.5d));
+            kept *= 1 - coverage * cleared;
+        }
+        return (int) Math.round(kept * 255);
+    }
+
+    /**
+     * Returns the falloff of a disc for each pixel of a square of side 2 * radius + 3, centered on
+     * the corner of the pixel (radius + 1, radius + 1).
+     */
+    static byte[] stamp(int radius, int passes, int shadeAlpha) {
+        long key = ((long) shadeAlpha << 40) | ((long) passes << 32) | radius;
+        byte[] stamp = STAMPS.get(key);
+        if (stamp != null) {
+            return stamp;
+        }
+        int center = radius + 1;
+        int size = 2 * center + 1;
+        stamp = new byte[size * size];
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                stamp[row * size + column] = (byte) falloff(column + 0.5d - center,
+                        row + 0.5d - center, radius, passes, shadeAlpha);
+            }
+        }
+        STAMPS.put(key, stamp);
+        return stamp;
+    }
+
+    /**
+     * @return the fog kept by count discs for each fog kept by one disc, out of 255
+     */
+    private static byte[] powerTable(int count) {
+        boolean cached = count < POWER_TABLES.length();
+        byte[] table = cached ? POWER_TABLES.get(count) : null;
+        if (table == null) {
+            table = new byte[256];
+            for (int kept = 0; kept < 256; kept++) {
+                table[kept] = (byte) Math.round(255 * Math.pow(kept / 255d, count));
+            }
+            if (cached) {
+                POWER_TABLES.set(count, table);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Blends the mask over itself with a paint of the given alpha, as the fog tiles have always
+     * been drawn. Darkens the fog while keeping the explored areas clear.
+     */
+    public static void blend(byte[] mask, int paintAlpha) {
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = (byte) blend(mask[i] & 0xff, paintAlpha);
+        }
+    }
+
+    /**
+     * @return the alpha of a mask pixel after {@link #blend(byte[], int)}
+     */
+    public static int blend(int alpha, int paintAlpha) {
+        int source = (alpha * paintAlpha + 127) / 255;
+        return source + (alpha * (255 - source) + 127) / 255;
+    }
+
+    /**
+     * Applies the fog alpha to a mask drawn with a full fog then blends it as
+     * {@link #blend(byte[], int)}, giving the alpha of the encoded tile.
+     */
+    public static void compose(byte[] mask, int alpha) {
+        byte[] table = COMPOSE_TABLES.get(alpha);
+        if (table == null) {
+            table = new byte[256];
+            for (int value = 0; value < 256; value++) {
+                table[value] = (byte) blend((value * alpha + 127) / 255, alpha);
+            }
+            COMPOSE_TABLES.set(alpha, table);
+        }
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = table[mask[i] & 0xff];
+        }
+    }
+
+    /**
+     * Converts the mask into black pixels of the mask alpha.
+     *
+     * @param pixels receives the ARGB pixels, at least as long as the mask
+     * @return the pixels parameter
+     */
+    public static int[] toArgb(byte[] mask, int[] pixels) {
+        for (int i = 0; i < mask.length; i++) {
+            pixels[i] = (mask[i] & 0xff) << 24;
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.unchiujar.umbra2.backend.PointStore;
+
+/**
+ * Web Mercator projection of the fog tiles, working on primitive values only so projecting points
+ * does not allocate. Coordinates are world pixels, the pixels of all the tiles of a zoom level
+ * counted from the north west corner of the world.
+ * <p/>
+ * The world sizes of the zoom levels are computed once, points are projected in batches into
+ * arrays owned by the caller.
+ */
+final class MercatorProjection {
+    /**
+     * Latitude limit of the projection, as a sine. Truncating to 0.9999 effectively limits
+     * latitude to 89.189, about a third of a tile past the edge of the world tile.
+     */
+    private static final double MAX_SIN_LATITUDE = 0.9999d;
+
+    /**
+     * Size of the world in pixels, per zoom level.
+     */
+    private static final double[] WORLD_SIZES = new double[ExploredTileProvider.MAX_ZOOM + 1];
+
+    static {
+        for (int zoom = 0; zoom < WORLD_SIZES.length; zoom++) {
+            WORLD_SIZES[zoom] = (double) ExploredTileProvider.TILE_SIZE * (1 << zoom);
+        }
+    }
+
+    private MercatorProjection() {
+    }
+
+    static double worldSize(int zoom) {
+        return WORLD_SIZES[zoom];
+    }
+
+    /**
+     * @return the longitude projected on the world, from 0 (west) to 1 (east)
+     */
+    static double worldX(double longitude) {
+        return (longitude + 180d) / 360d;
+    }
+
+    /**
+     * @return the latitude projected on the Mercator world, from 0 (north) to 1 (south)
+     */
+    static double worldY(double latitude) {
+        return projectSinLatitude(Math.sin(Math.toRadians(latitude)));
+    }
+
+    private static double projectSinLatitude(double sinLatitude) {
+        double sinY = Math.max(-MAX_SIN_LATITUDE, Math.min(MAX_SIN_LATITUDE, sinLatitude));
+        return 0.5d - Math.log((1 + sinY) / (1 - sinY)) / (4 * Math.PI);
+    }
+
+    /**
+     * @return the latitude of a projected world position, the inverse of {@link #worldY(double)}
+     * without the latitude limit
+     */
+    static double latitude(double worldY) {
+        return Math.toDegrees(2 * Math.atan(Math.exp(Math.toRadians(180 - worldY * 360)))) - 90;
+    }
+
+    static int pixelX(double longitude, int zoom) {
+        return (int) (worldX(longitude) * WORLD_SIZES[zoom]);
+    }
+
+    static int pixelY(double latitude, int zoom) {
+        return (int) (worldY(latitude) * WORLD_SIZES[zoom]);
+    }
+
+    /**
+     * Projects a batch of points to world pixels of the zoom level.
+     *
+     * @param count   number of points projected, from the start of the arrays
+     * @param pixelXs receives the world pixel x of the points
+     * @param pixelYs receives the world pixel y of the points
+     */
+    static void project(int[] latitudesE7, int[] longitudesE7, int count, int zoom,
+                        int[] pixelXs, int[] pixelYs) {
+        double worldSize = WORLD_SIZES[zoom];
+        for (int i = 0; i < count; i++) {
+            pixelXs[i] = (int) (worldX(PointStore.fromE7(longitudesE7[i])) * worldSize);
+            pixelYs[i] = (int) (worldY(PointStore.fromE7(latitudesE7[i])) * worldSize);
+        }
+    }
+}
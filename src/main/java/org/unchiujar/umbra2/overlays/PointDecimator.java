@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.overlays;
+
+/**
+ * Merges the projected points of a tile falling in the same cell of a grid sized to the disc
+ * radius, so a tile draws at most one disc per cell however many points were recorded in it.
+ * <p/>
+ * A cell is drawn once, at the mean position of its points, with the falloff of as many discs as
+ * points, see {@link FogRasterizer#drawDisc(int, int, int)}. Points in the same pixel give the
+ * same fog as drawing them in turn, points spread over a cell move by less than half a cell which
+ * is a small part of the disc radius.
+ * <p/>
+ * A decimator holds the cells of the tile being drawn and is not thread safe, use one per thread.
+ */
+class PointDecimator implements PixelVisitor {
+    /**
+     * Cells across a disc radius, the width of a cell is the radius divided by this.
+     */
+    private static final int CELLS_PER_RADIUS = 16;
+
+    private final int mSize;
+
+    private int[] mCounts = new int[0];
+    /**
+     * Sums of the point offsets within the cells, not used by cells of one pixel.
+     */
+    private long[] mSumsX = new long[0];
+    private long[] mSumsY = new long[0];
+    private int[] mOccupied = new int[0];
+    private int mOccupiedCount;
+    private int mGridX;
+    private int mGridY;
+    private int mMargin;
+    private int mCell;
+    private int mColumns;
+    private int mRows;
+    private int mVisited;
+
+    /**
+     * @param size width and height of the tiles in pixels
+     */
+    PointDecimator(int size) {
+        mSize = size;
+    }
+
+    /**
+     * Starts collecting the points of a tile.
+     *
+     * @param radius disc radius in pixels
+     */
+    void begin(int tileX, int tileY, int radius) {
+        // points further away than this do not reach the tile
+        mMargin = radius + 1;
+        mCell = Math.max(1, radius / CELLS_PER_RADIUS);
+        mGridX = tileX * mSize - mMargin;
+        mGridY = tileY * mSize - mMargin;
+        mColumns = (mSize + 2 * mMargin + mCell - 1) / mCell;
+        mRows = mColumns;
+        int cells = mColumns * mRows;
+        if (mCounts.length < cells) {
+            mCounts = new int[cells];
+            mOccupied = new int[cells];
+        }
+        if (mCell > 1 && mSumsX.length < cells) {
+            mSumsX = new long[cells];
+            mSumsY = new long[cells];
+        }
+        mOccupiedCount = 0;
+        mVisited = 0;
+    }
+
+    @Override
+    public void visitPixel(int pixelX, int pixelY) {
+        int x = pixelX - mGridX;
+        int y = pixelY - mGridY;
+        if (x < 0 || y < 0) {
+            return;
+        }
+        int column = x / mCell;
+        int row = y / mCell;
+        if (column >= mColumns || row >= mRows) {
+            return;
+        }
+        int cell = row * mColumns + column;
+        if (mCounts[cell] == 0) {
+            mOccupied[mOccupiedCount++] = cell;
+        }
+        mCounts[cell]++;
+        if (mCell > 1) {
+            mSumsX[cell] += x - column * mCell;
+            mSumsY[cell] += y - row * mCell;
+        }
+        mVisited++;
+    }
+
+    /**
+     * Draws one disc per occupied cell on the tile begun on the rasterizer and clears the cells.
+     *
+     * @return the number of discs drawn
+     */
+    int drawTo(FogRasterizer rasterizer) {
+        for (int i = 0; i < mOccupiedCount; i++) {
+            int cell = mOccupied[i];
+            int count = mCounts[cell];
+            int x = (cell % mColumns) * mCell - mMargin;
+            int y = (cell / mColumns) * mCell - mMargin;
+            if (mCell > 1) {
+                // rounded mean offset of the points
+                x += (int) ((2 * mSumsX[cell] + count) / (2L * count));
+                y += (int) ((2 * mSumsY[cell] + count) / (2L * count));
+                mSumsX[cell] = 0;
+                mSumsY[cell] = 0;
+            }
+            rasterizer.drawDisc(x, y, count);
+            mCounts[cell] = 0;
+        }
+        int drawn = mOccupiedCount;
+        mOccupiedCount = 0;
+        return drawn;
+    }
+
+    /**
+     * @return the number of points reaching the tile collected since {@link #begin(int, int, int)}
+     */
+    int getVisitedCount() {
+        return mVisited;
+    }
+}
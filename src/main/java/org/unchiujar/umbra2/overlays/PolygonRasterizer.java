@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+
+package org.unchiujar.umbra2.overlays;
+
+import java.util.Arrays;
+
+/**
+ * Fills the explored rings of the {@link CoverageIndex} into the fog mask of a tile. The rings
+ * are filled with the even odd rule along {@link #SUBSAMPLES} scanlines per pixel row, with the
+ * exact horizontal coverage of the span ends, so the edges are antialiased.
+ * <p/>
+ * A rasterizer holds the edges of the tile being drawn and is not thread safe, use one per thread.
+ */
+class PolygonRasterizer {
+    /**
+     * Scanlines per pixel row.
+     */
+    static final int SUBSAMPLES = 4;
+
+    private final int mSize;
+    private final float[] mCoverage;
+    private final byte[] mMask;
+    /**
+     * Edges crossing the tile rows, x and y of the top end then x and y of the bottom end.
+     */
+    private float[] mEdges = new float[256];
+    private int mEdgeCount;
+    private final int[] mRowEdges;
+    private int[] mNextEdges = new int[64];
+    private int[] mActive = new int[64];
+    private float[] mCrossings = new float[64];
+
+    /**
+     * @param size width and height of the tiles in pixels
+     */
+    PolygonRasterizer(int size) {
+        mSize = size;
+        mCoverage = new float[size * size];
+        mMask = new byte[size * size];
+        mRowEdges = new int[size * SUBSAMPLES];
+    }
+
+    /**
+     * Forgets the rings of the previous tile.
+     */
+    void begin() {
+        Arrays.fill(mCoverage, 0);
+        mEdgeCount = 0;
+    }
+
+    /**
+     * Adds a ring to fill, its corners are transformed to tile pixels by x * scale + offsetX and
+     * y * scale + offsetY.
+     *
+     * @param ring x, y pairs of the corners
+     */
+    void addRing(float[] ring, double scale, double offsetX, double offsetY) {
+        int length = ring.length;
+        double minX = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < length; i += 2) {
+            minX = Math.min(minX, ring[i]);
+            maxX = Math.max(maxX, ring[i]);
+            minY = Math.min(minY, ring[i + 1]);
+            maxY = Math.max(maxY, ring[i + 1]);
+        }
+        // the crossings of a ring pair up, rings out of the tile are left out whole
+        if (maxX * scale + offsetX <= 0 || minX * scale + offsetX >= mSize
+                || maxY * scale + offsetY <= 0 || minY * scale + offsetY >= mSize) {
+            return;
+        }
+        for (int i = 0; i < length; i += 2) {
+            int next = (i + 2) % length;
+            float x0 = (float) (ring[i] * scale + offsetX);
+            float y0 = (float) (ring[i + 1] * scale + offsetY);
+            float x1 = (float) (ring[next] * scale + offsetX);
+            float y1 = (float) (ring[next + 1] * scale + offsetY);
+            if (y0 == y1) {
+                continue;
+            }
+            if (y0 > y1) {
+                addEdge(x1, y1, x0, y0);
+            } else {
+                addEdge(x0, y0, x1, y1);
+            }
+        }
+    }
+
+    private void addEdge(float topX, float topY, float bottomX, float bottomY) {
+        if (bottomY <= 0 || topY >= mSize) {
+            return;
+        }
+        if (4 * (mEdgeCount + 1) > mEdges.length) {
+            mEdges = Arrays.copyOf(mEdges, mEdges.length * 2);
+        }
+        int index = 4 * mEdgeCount++;
+        mEdges[index] = topX;
+        mEdges[index + 1] = topY;
+        mEdges[index + 2] = bottomX;
+        mEdges[index + 3] = bottomY;
+    }
+
+    /**
+     * Covers the whole pixel containing the point.
+     */
+    void addPoint(double x, double y) {
+        if (x < 0 || y < 0 || x >= mSize || y >= mSize) {
+            return;
+        }
+        mCoverage[(int) y * mSize + (int) x] = 1;
+    }
+
+    /**
+     * Fills the rings and converts the coverage into a fog mask, full fog where nothing is
+     * covered.
+     *
+     * @return the mask, valid until the next tile
+     */
+    byte[] finish() {
+        int rows = mSize * SUBSAMPLES;
+        Arrays.fill(mRowEdges, -1);
+        if (mNextEdges.length < mEdgeCount) {
+            mNextEdges = new int[Math.max(mEdgeCount, 2 * mNextEdges.length)];
+        }
+        for (int edge = 0; edge < mEdgeCount; edge++) {
+            int row = firstRow(mEdges[4 * edge + 1]);
+            mNextEdges[edge] = mRowEdges[row];
+            mRowEdges[row] = edge;
+        }
+        int active = 0;
+        float weight = 1f / SUBSAMPLES;
+        for (int row = 0; row < rows; row++) {
+            float y = (row + 0.5f) / SUBSAMPLES;
+            for (int edge = mRowEdges[row]; edge >= 0; edge = mNextEdges[edge]) {
+                if (active == mActive.length) {
+                    mActive = Arrays.copyOf(mActive, active * 2);
+                    mCrossings = Arrays.copyOf(mCrossings, active * 2);
+                }
+                mActive[active++] = edge;
+            }
+            int crossings = 0;
+            for (int i = 0; i < active; i++) {
+                int index = 4 * mActive[i];
+                float topY = mEdges[index + 1];
+                float bottomY = mEdges[index + 3];
+                if (y >= bottomY) {
+                    mActive[i--] = mActive[--active];
+                    continue;
+                }
+                if (y < topY) {
+                    continue;
+                }
+                float topX = mEdges[index];
+                float x = topX + (y - topY) * (mEdges[index + 2] - topX) / (bottomY - topY);
+                // insertion sort, few edges cross a row
+                int position = crossings++;
+                while (position > 0 && mCrossings[position - 1] > x) {
+                    mCrossings[position] = mCrossings[position - 1];
+                    position--;
+                }
+                mCrossings[position] = x;
+            }
+            int offset = (row / SUBSAMPLES) * mSize;
+            for (int i = 0; i + 1 < crossings; i += 2) {
+                addSpan(offset, mCrossings[i], mCrossings[i + 1], weight);
+            }
+        }
+
+        for (int i = 0; i < mMask.length; i++) {
+            mMask[i] = (byte) (255 - Math.round(255 * Math.min(1f, mCoverage[i])));
+        }
+        return mMask;
+    }
+
+    /**
+     * @return the first scanline below the top of an edge, within the tile
+     */
+    private int firstRow(float topY) {
+        int row = (int) Math.ceil(topY * SUBSAMPLES - 0.5f);
+        return Math.max(0, Math.min(mSize * SUBSAMPLES - 1, row));
+    }
+
+    private void addSpan(int offset, float from, float to, float weight) {
+        from = Math.max(0, from);
+        to = Math.min(mSize, to);
+        if (from >= to) {
+            return;
+        }
+        int first = (int) from;
+        int last = (int) to;
+        if (first == last) {
+            mCoverage[offset + first] += (to - from) * weight;
+            return;
+        }
+        mCoverage[offset + first] += (first + 1 - from) * weight;
+        for (int column = first + 1; column < last; column++) {
+            mCoverage[offset + column] += weight;
+        }
+        if (last < mSize) {
+            mCoverage[offset + last] += (to - last) * weight;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Coalesces the camera and explored point events of the map into overlay refreshes.
+ * <p/>
+ * The data of the last visible region is prepared on a background thread, then the overlay is
+ * refreshed on the UI thread, at most once per interval. Events arriving while a run is scheduled
+ * are merged into it, only the last visible region is prepared and the ones it replaced are
+ * dropped.
+ */
+public class RedrawScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedrawScheduler.class);
+
+    /**
+     * Prepares and refreshes the overlay.
+     */
+    public interface Target {
+        /**
+         * Prepares the data of the visible region, on the scheduler thread.
+         *
+         * @return true if the overlay must be refreshed
+         */
+        boolean prepare(double south, double west, double north, double east, int zoom);
+
+        /**
+         * Refreshes the overlay, on the UI thread.
+         */
+        void refresh();
+    }
+
+    private final Target mTarget;
+    private final Timer mTimer = new Timer("RedrawScheduler", true);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mTarget.refresh();
+        }
+    };
+    private volatile long mInterval;
+    private long mLastRun;
+    private boolean mScheduled;
+    private boolean mDestroyed;
+
+    // pending events
+    private boolean mViewportPending;
+    private double mSouth;
+    private double mWest;
+    private double mNorth;
+    private double mEast;
+    private int mZoom;
+    private boolean mRefreshPending;
+
+    // statistics
+    private long mEvents;
+    private long mMerged;
+    private long mDropped;
+    private long mRuns;
+
+    /**
+     * @param interval minimum time between two overlay refreshes, in milliseconds
+     */
+    public RedrawScheduler(Target target, long interval) {
+        mTarget = target;
+        mInterval = interval;
+    }
+
+    public void setInterval(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Schedules preparing the new visible region and refreshing the overlay if its data changed.
+     */
+    public synchronized void viewportChanged(double south, double west, double north, double east,
+                                             int zoom) {
+        if (mViewportPending) {
+            mDropped++;
+        }
+        mViewportPending = true;
+        mSouth = south;
+        mWest = west;
+        mNorth = north;
+        mEast = east;
+        mZoom = zoom;
+        schedule();
+    }
+
+    /**
+     * Schedules refreshing the overlay, for example after new points were explored.
+     */
+    public synchronized void refreshRequested() {
+        mRefreshPending = true;
+        schedule();
+    }
+
+    private void schedule() {
+        mEvents++;
+        if (mScheduled) {
+            mMerged++;
+            return;
+        }
+        if (mDestroyed) {
+            return;
+        }
+        mScheduled = true;
+        long delay = Math.max(0, mLastRun + mInterval - SystemClock.elapsedRealtime());
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                runPending();
+            }
+        }, delay);
+    }
+
+    private void runPending() {
+        boolean viewport;
+        boolean refresh;
+        double south;
+        double west;
+        double north;
+        double east;
+        int zoom;
+        synchronized (this) {
+            mScheduled = false;
+            mLastRun = SystemClock.elapsedRealtime();
+            viewport = mViewportPending;
+            refresh = mRefreshPending;
+            south = mSouth;
+            west = mWest;
+            north = mNorth;
+            east = mEast;
+            zoom = mZoom;
+            mViewportPending = false;
+            mRefreshPending = false;
+        }
+        try {
+            if (viewport && mTarget.prepare(south, west, north, east, zoom)) {
+                refresh = true;
+            }
+        } catch (RuntimeException e) {
+            // keep the timer thread alive for the next events
+            LOGGER.error("Error preparing the overlay", e);
+        }
+        synchronized (this) {
+            // destroy() removes the refreshes posted before it
+            if (refresh && !mDestroyed) {
+                mHandler.post(mRefresh);
+            }
+            mRuns++;
+            LOGGER.debug("Redraw run {}, refresh {}, {} events {} merged {} dropped",
+                    mRuns, refresh, mEvents, mMerged, mDropped);
+        }
+    }
+
+    /**
+     * Stops the scheduler, pending events are discarded.
+     */
+    public synchronized void destroy() {
+        mDestroyed = true;
+        mTimer.cancel();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    /**
+     * @return the number of viewport and refresh events received
+     */
+    public synchronized long getEventCount() {
+        return mEvents;
+    }
+
+    /**
+     * @return the number of events merged into an already scheduled run
+     */
+    public synchronized long getMergedCount() {
+        return mMerged;
+    }
+
+    /**
+     * @return the number of visible regions replaced by a later one before being prepared
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getRunCount() {
+        return mRuns;
+    }
+}
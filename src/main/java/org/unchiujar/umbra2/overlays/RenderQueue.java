@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.os.SystemClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Tile renders waiting for a render thread, the tile closest to the camera target is rendered
+ * first.
+ * <p/>
+ * Every queued render submits a worker to the executor and each worker takes the closest render
+ * queued when it starts, not its own. Queued renders of tiles that left the visible region, or of
+ * a zoom level other than the camera zoom, are cancelled instead of rendered. Renders
+ * already running are left to finish, their tiles are cached.
+ */
+class RenderQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderQueue.class);
+    /**
+     * Tiles this many tiles away from the visible region are still rendered, the map requests
+     * tiles around the visible region.
+     */
+    private static final int MARGIN_TILES = 1;
+
+    private final Executor mExecutor;
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            Render<?> render = poll();
+            if (render != null) {
+                render.run();
+            }
+        }
+    };
+    /**
+     * Queued renders, oldest first.
+     */
+    private final List<Render<?>> mQueued = new ArrayList<Render<?>>();
+    /**
+     * Camera zoom, tiles are requested at the zoom levels around it while it changes.
+     */
+    private float mZoom;
+    /**
+     * Camera target and visible region, in world coordinates.
+     */
+    private boolean mHasViewport;
+    private double mTargetX;
+    private double mTargetY;
+    private double mWest;
+    private double mEast;
+    private double mNorth;
+    private double mSouth;
+
+    // statistics
+    private long mRendered;
+    private long mCancelled;
+    private long mWaited;
+
+    RenderQueue(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues the render of a tile.
+     *
+     * @return the result of the render, cancelled if the tile leaves the visible region or the
+     * zoom level changes before it starts
+     */
+    <T> Future<T> submit(int x, int y, int zoom, Callable<T> callable) {
+        Render<T> render = new Render<T>(x, y, zoom, callable);
+        synchronized (this) {
+            if (isStale(render)) {
+                // a late request for a tile the camera already left
+                render.cancel(false);
+                mCancelled++;
+                return render;
+            }
+            mQueued.add(render);
+        }
+        mExecutor.execute(mWorker);
+        return render;
+    }
+
+    /**
+     * Sets the camera target, zoom and the visible region, cancelling the queued renders of tiles
+     * no longer visible.
+     */
+    synchronized void setViewport(double latitude, double longitude, float zoom, double south,
+                                  double west, double north, double east) {
+        mHasViewport = true;
+        mZoom = zoom;
+        mTargetX = MercatorProjection.worldX(longitude);
+        mTargetY = MercatorProjection.worldY(latitude);
+        if (west > east) {
+            // the visible region crosses the antimeridian
+            mWest = 0;
+            mEast = 1;
+        } else {
+            mWest = MercatorProjection.worldX(west);
+            mEast = MercatorProjection.worldX(east);
+        }
+        mNorth = MercatorProjection.worldY(north);
+        mSouth = MercatorProjection.worldY(south);
+        cancelStale();
+    }
+
+    private void cancelStale() {
+        int cancelled = 0;
+        Iterator<Render<?>> queued = mQueued.iterator();
+        while (queued.hasNext()) {
+            Render<?> render = queued.next();
+            if (isStale(render)) {
+                queued.remove();
+                render.cancel(false);
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            mCancelled += cancelled;
+            LOGGER.debug("Cancelled {} stale renders, {} queued", cancelled, mQueued.size());
+        }
+    }
+
+    private boolean isStale(Render<?> render) {
+        if (!mHasViewport) {
+            return false;
+        }
+        if (render.mZoom < Math.floor(mZoom) || render.mZoom > Math.ceil(mZoom)) {
+            return true;
+        }
+        double tiles = 1 << render.mZoom;
+        return (render.mX - MARGIN_TILES) / tiles > mEast
+                || (render.mX + 1 + MARGIN_TILES) / tiles < mWest
+                || (render.mY - MARGIN_TILES) / tiles > mSouth
+                || (render.mY + 1 + MARGIN_TILES) / tiles < mNorth;
+    }
+
+    /**
+     * @return the queued render of the tile closest to the camera target, or null if none is
+     * queued
+     */
+    private synchronized Render<?> poll() {
+        Render<?> closest = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (Render<?> render : mQueued) {
+            double distance = distance(render);
+            if (distance < closestDistance) {
+                closest = render;
+                closestDistance = distance;
+            }
+        }
+        if (closest != null) {
+            mQueued.remove(closest);
+            mRendered++;
+            mWaited += SystemClock.elapsedRealtime() - closest.mQueuedAt;
+        }
+        return closest;
+    }
+
+    /**
+     * @return the squared distance from the camera target to the center of the tile, in world
+     * coordinates
+     */
+    private double distance(Render<?> render) {
+        if (!mHasViewport) {
+            return 0;
+        }
+        double tiles = 1 << render.mZoom;
+        double x = (render.mX + 0.5d) / tiles - mTargetX;
+        double y = (render.mY + 0.5d) / tiles - mTargetY;
+        return x * x + y * y;
+    }
+
+    /**
+     * @return the number of renders waiting for a render thread
+     */
+    synchronized int getDepth() {
+        return mQueued.size();
+    }
+
+    synchronized long getRenderedCount() {
+        return mRendered;
+    }
+
+    /**
+     * @return the number of renders cancelled before they started
+     */
+    synchronized long getCancelledCount() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the average time the started renders waited in the queue, in milliseconds
+     */
+    synchronized long getAverageWait() {
+        return mRendered == 0 ? 0 : mWaited / mRendered;
+    }
+
+    private static final class Render<T> extends FutureTask<T> {
+        private final int mX;
+        private final int mY;
+        private final int mZoom;
+        private final long mQueuedAt = SystemClock.elapsedRealtime();
+
+        Render(int x, int y, int zoom, Callable<T> callable) {
+            super(callable);
+            mX = x;
+            mY = y;
+            mZoom = zoom;
+        }
+    }
+}
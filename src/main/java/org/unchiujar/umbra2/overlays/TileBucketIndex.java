@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.Arrays;
+
+import static org.unchiujar.umbra2.location.LocationOrder.METERS_RADIUS;
+
+/**
+ * Explored points of a {@link PointStore} grouped by the map tile containing them at one zoom
+ * level. Drawing a tile then only visits the points in the tile and its neighbours instead of
+ * every loaded point.
+ * <p/>
+ * The points are copied into columns ordered by tile, with the sorted tile keys and the offset of
+ * the first point of each tile kept alongside. The world pixels of the points are projected once
+ * when the index is built so drawing tiles does no projection. An index is immutable, a changed
+ * store requires a new index, see {@link #updated(PointStore)}.
+ * <p/>
+ * Points added to the store after the index was built, for example newly explored points, are
+ * kept in an overflow scanned by every query instead of building the index again. The overflow
+ * is merged by the next full build, once it grows past {@link #MAX_OVERFLOW} points.
+ */
+class TileBucketIndex {
+    /**
+     * Length of the equator in meters.
+     */
+    static final double EQUATOR_METERS = 40075016.686d;
+    /**
+     * Number of added points kept in the overflow before the index is built again.
+     */
+    static final int MAX_OVERFLOW = 512;
+    private static final int[] NO_POINTS = new int[0];
+
+    private final int mZoom;
+    private final PointStore mSource;
+    /**
+     * Added count of the store when the points were read, see {@link PointStore#getAddedCount()}.
+     */
+    private final int mSourceAdded;
+
+    private final long[] mTileKeys;
+    private final int[] mOffsets;
+    private final int[] mLatitudes;
+    private final int[] mLongitudes;
+    private final int[] mPixelXs;
+    private final int[] mPixelYs;
+
+    // points added after the build, unordered
+    private final int[] mExtraLatitudes;
+    private final int[] mExtraLongitudes;
+    private final int[] mExtraPixelXs;
+    private final int[] mExtraPixelYs;
+
+    private TileBucketIndex(int zoom, PointStore source, int sourceAdded, long[] tileKeys,
+                            int[] offsets, int[] latitudes, int[] longitudes, int[] pixelXs,
+                            int[] pixelYs, int[] extraLatitudes, int[] extraLongitudes,
+                            int[] extraPixelXs, int[] extraPixelYs) {
+        mZoom = zoom;
+        mSource = source;
+        mSourceAdded = sourceAdded;
+        mTileKeys = tileKeys;
+        mOffsets = offsets;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mPixelXs = pixelXs;
+        mPixelYs = pixelYs;
+        mExtraLatitudes = extraLatitudes;
+        mExtraLongitudes = extraLongitudes;
+        mExtraPixelXs = extraPixelXs;
+        mExtraPixelYs = extraPixelYs;
+    }
+
+    static long tileKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * @return the x coordinate of the tile containing the longitude at the zoom level
+     */
+    static int tileX(double longitude, int zoom) {
+        return clampTile((int) (MercatorProjection.worldX(longitude) * (1 << zoom)), zoom);
+    }
+
+    /**
+     * @return the y coordinate of the tile containing the latitude at the zoom level
+     */
+    static int tileY(double latitude, int zoom) {
+        return clampTile((int) (MercatorProjection.worldY(latitude) * (1 << zoom)), zoom);
+    }
+
+    private static int clampTile(int tile, int zoom) {
+        int tiles = 1 << zoom;
+        return tile < 0 ? 0 : (tile >= tiles ? tiles - 1 : tile);
+    }
+
+    /**
+     * Radius in pixels of the disc drawn around a point at the latitude, rounded up. The tile
+     * provider measures the radius over the tile span so this is accurate within a pixel.
+     */
+    static int discRadius(double latitude, int zoom) {
+        double metersPerPixel = EQUATOR_METERS * Math.cos(Math.toRadians(latitude))
+                / ((double) ExploredTileProvider.TILE_SIZE * (1 << zoom));
+        int radius = (int) Math.ceil(METERS_RADIUS * 2 / metersPerPixel);
+        return Math.max(radius, ExploredTileProvider.RADIUS_SHADE_THRESHOLD);
+    }
+
+    /**
+     * Finds the tiles overlapped by the disc of a point at the zoom level.
+     *
+     * @param range receives the first and last x then the first and last y of the tiles
+     * @return the range parameter
+     */
+    static int[] touchedTiles(double latitude, double longitude, int zoom, int[] range) {
+        int tileSize = ExploredTileProvider.TILE_SIZE;
+        double worldSize = MercatorProjection.worldSize(zoom);
+        // one extra pixel for the antialiasing
+        int radius = discRadius(latitude, zoom) + 1;
+        double pixelX = MercatorProjection.worldX(longitude) * worldSize;
+        double pixelY = MercatorProjection.worldY(latitude) * worldSize;
+        int maxTile = (1 << zoom) - 1;
+        range[0] = Math.max(0, (int) Math.floor((pixelX - radius) / tileSize));
+        range[1] = Math.min(maxTile, (int) Math.floor((pixelX + radius) / tileSize));
+        range[2] = Math.max(0, (int) Math.floor((pixelY - radius) / tileSize));
+        range[3] = Math.min(maxTile, (int) Math.floor((pixelY + radius) / tileSize));
+        return range;
+    }
+
+    /**
+     * Groups all points of the store by tile at the zoom level.
+     */
+    static TileBucketIndex build(PointStore points, final int zoom) {
+        final int[] latitudes;
+        final int[] longitudes;
+        final int[] count = new int[1];
+        int added;
+        // the added count must match the points read
+        synchronized (points) {
+            added = points.getAddedCount();
+            latitudes = new int[points.size()];
+            longitudes = new int[latitudes.length];
+            points.forEach(new PointVisitor() {
+                @Override
+                public void visit(int latitudeE7, int longitudeE7) {
+                    int index = count[0]++;
+                    latitudes[index] = latitudeE7;
+                    longitudes[index] = longitudeE7;
+                }
+            });
+        }
+
+        int[] pixelXs = new int[count[0]];
+        int[] pixelYs = new int[count[0]];
+        MercatorProjection.project(latitudes, longitudes, count[0], zoom, pixelXs, pixelYs);
+        long[] keys = new long[count[0]];
+        int tileSize = ExploredTileProvider.TILE_SIZE;
+        for (int i = 0; i < count[0]; i++) {
+            keys[i] = tileKey(clampTile(pixelXs[i] / tileSize, zoom),
+                    clampTile(pixelYs[i] / tileSize, zoom));
+        }
+
+        long[] sorted = Arrays.copyOf(keys, count[0]);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        long[] tileKeys = Arrays.copyOf(sorted, unique);
+
+        int[] offsets = new int[unique + 1];
+        int[] buckets = new int[count[0]];
+        for (int i = 0; i < count[0]; i++) {
+            buckets[i] = Arrays.binarySearch(tileKeys, keys[i]);
+            offsets[buckets[i] + 1]++;
+        }
+        for (int i = 0; i < unique; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] next = Arrays.copyOf(offsets, unique);
+        int[] groupedLatitudes = new int[count[0]];
+        int[] groupedLongitudes = new int[count[0]];
+        int[] groupedPixelXs = new int[count[0]];
+        int[] groupedPixelYs = new int[count[0]];
+        for (int i = 0; i < count[0]; i++) {
+            int position = next[buckets[i]]++;
+            groupedLatitudes[position] = latitudes[i];
+            groupedLongitudes[position] = longitudes[i];
+            groupedPixelXs[position] = pixelXs[i];
+            groupedPixelYs[position] = pixelYs[i];
+        }
+        return new TileBucketIndex(zoom, points, added, tileKeys, offsets, groupedLatitudes,
+                groupedLongitudes, groupedPixelXs, groupedPixelYs, NO_POINTS, NO_POINTS,
+                NO_POINTS, NO_POINTS);
+    }
+
+    /**
+     * Returns the index of the current content of the store, with the points added to the store
+     * since this index was built appended to the overflow.
+     *
+     * @return this index if the store did not change, or null if the index must be built again
+     */
+    TileBucketIndex updated(PointStore points) {
+        if (points != mSource) {
+            return null;
+        }
+        final int extra = mExtraLatitudes.length;
+        final int[] latitudes;
+        final int[] longitudes;
+        int added;
+        synchronized (points) {
+            added = points.getAddedCount();
+            if (added == mSourceAdded) {
+                return this;
+            }
+            if (extra + added - mSourceAdded > MAX_OVERFLOW) {
+                return null;
+            }
+            latitudes = Arrays.copyOf(mExtraLatitudes, extra + added - mSourceAdded);
+            longitudes = Arrays.copyOf(mExtraLongitudes, latitudes.length);
+            final int[] count = {extra};
+            boolean known = points.forEachAddedSince(mSourceAdded, new PointVisitor() {
+                @Override
+                public void visit(int latitudeE7, int longitudeE7) {
+                    latitudes[count[0]] = latitudeE7;
+                    longitudes[count[0]] = longitudeE7;
+                    count[0]++;
+                }
+            });
+            if (!known) {
+                return null;
+            }
+        }
+        int[] pixelXs = Arrays.copyOf(mExtraPixelXs, latitudes.length);
+        int[] pixelYs = Arrays.copyOf(mExtraPixelYs, latitudes.length);
+        int[] addedXs = new int[latitudes.length - extra];
+        int[] addedYs = new int[addedXs.length];
+        MercatorProjection.project(Arrays.copyOfRange(latitudes, extra, latitudes.length),
+                Arrays.copyOfRange(longitudes, extra, longitudes.length), addedXs.length, mZoom,
+                addedXs, addedYs);
+        System.arraycopy(addedXs, 0, pixelXs, extra, addedXs.length);
+        System.arraycopy(addedYs, 0, pixelYs, extra, addedYs.length);
+        return new TileBucketIndex(mZoom, mSource, added, mTileKeys, mOffsets, mLatitudes,
+                mLongitudes, mPixelXs, mPixelYs, latitudes, longitudes, pixelXs, pixelYs);
+    }
+
+    /**
+     * @return true if the overflow point is in the tiles range, bounds included
+     */
+    private boolean isExtraIn(int i, int minX, int maxX, int minY, int maxY) {
+        int tileSize = ExploredTileProvider.TILE_SIZE;
+        int tileX = clampTile(mExtraPixelXs[i] / tileSize, mZoom);
+        int tileY = clampTile(mExtraPixelYs[i] / tileSize, mZoom);
+        return tileX >= minX && tileX <= maxX && tileY >= minY && tileY <= maxY;
+    }
+
+    int getZoom() {
+        return mZoom;
+    }
+
+    int size() {
+        return mLatitudes.length + mExtraLatitudes.length;
+    }
+
+    /**
+     * @return the number of points in the tile
+     */
+    int count(int x, int y) {
+        return countAround(x, y, 0);
+    }
+
+    /**
+     * Visits the points in the tile.
+     */
+    void forEachInTile(int x, int y, PointVisitor visitor) {
+        forEachAround(x, y, 0, visitor);
+    }
+
+    private void forEachBucketed(int x, int y, PointVisitor visitor) {
+        int bucket = Arrays.binarySearch(mTileKeys, tileKey(x, y));
+        if (bucket < 0) {
+            return;
+        }
+        for (int i = mOffsets[bucket]; i < mOffsets[bucket + 1]; i++) {
+            visitor.visit(mLatitudes[i], mLongitudes[i]);
+        }
+    }
+
+    private int countBucketed(int x, int y) {
+        int bucket = Arrays.binarySearch(mTileKeys, tileKey(x, y));
+        return bucket < 0 ? 0 : mOffsets[bucket + 1] - mOffsets[bucket];
+    }
+
+    /**
+     * Visits the points in the tile and in the tiles up to ring tiles away from it.
+     */
+    void forEachAround(int x, int y, int ring, PointVisitor visitor) {
+        int maxTile = (1 << mZoom) - 1;
+        int minX = Math.max(0, x - ring);
+        int maxX = Math.min(maxTile, x + ring);
+        int minY = Math.max(0, y - ring);
+        int maxY = Math.min(maxTile, y + ring);
+        for (int tileX = minX; tileX <= maxX; tileX++) {
+            for (int tileY = minY; tileY <= maxY; tileY++) {
+                forEachBucketed(tileX, tileY, visitor);
+            }
+        }
+        for (int i = 0; i < mExtraLatitudes.length; i++) {
+            if (isExtraIn(i, minX, maxX, minY, maxY)) {
+                visitor.visit(mExtraLatitudes[i], mExtraLongitudes[i]);
+            }
+        }
+    }
+
+    /**
+     * Visits the world pixels of the points in the tile and in the tiles up to ring tiles away
+     * from it.
+     */
+    void forEachPixelAround(int x, int y, int ring, PixelVisitor visitor) {
+        int maxTile = (1 << mZoom) - 1;
+        int minX = Math.max(0, x - ring);
+        int maxX = Math.min(maxTile, x + ring);
+        int minY = Math.max(0, y - ring);
+        int maxY = Math.min(maxTile, y + ring);
+        for (int i = 0; i < mExtraLatitudes.length; i++) {
+            if (isExtraIn(i, minX, maxX, minY, maxY)) {
+                visitor.visitPixel(mExtraPixelXs[i], mExtraPixelYs[i]);
+            }
+        }
+        for (int tileX = minX; tileX <= maxX; tileX++) {
+            for (int tileY = minY; tileY <= maxY; tileY++) {
+                int bucket = Arrays.binarySearch(mTileKeys, tileKey(tileX, tileY));
+                if (bucket < 0) {
+                    continue;
+                }
+                for (int i = mOffsets[bucket]; i < mOffsets[bucket + 1]; i++) {
+                    visitor.visitPixel(mPixelXs[i], mPixelYs[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of points in the tile and in the tiles up to ring tiles away from it
+     */
+    int countAround(int x, int y, int ring) {
+        int maxTile = (1 << mZoom) - 1;
+        int minX = Math.max(0, x - ring);
+        int maxX = Math.min(maxTile, x + ring);
+        int minY = Math.max(0, y - ring);
+        int maxY = Math.min(maxTile, y + ring);
+        int total = 0;
+        for (int tileX = minX; tileX <= maxX; tileX++) {
+            for (int tileY = minY; tileY <= maxY; tileY++) {
+                total += countBucketed(tileX, tileY);
+            }
+        }
+        for (int i = 0; i < mExtraLatitudes.length; i++) {
+            if (isExtraIn(i, minX, maxX, minY, maxY)) {
+                total++;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory cache of rendered fog tiles, bounded by the byte size of the masks and evicting the
+ * least recently used tiles first. It is owned by the application so the tiles survive the map
+ * activity being recreated.
+ * <p/>
+ * The cache listens for newly explored points and draws their discs on the cached tiles they
+ * overlap, at every zoom level, so only the changed tiles need to be encoded again. Below the
+ * {@link TilePyramid} base zoom the changed quarters are downsampled again from the updated tiles
+ * of the next zoom level, from the highest zoom level down. Cached masks are coverage masks drawn
+ * with a full fog, the fog transparency is applied when they are encoded so changing it keeps the
+ * cached tiles, see {@link ExploredTileProvider#draw(int, int, int)}.
+ */
+public class TileCache implements PointVisitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileCache.class);
+    /**
+     * Part of the maximum heap used for tiles.
+     */
+    private static final int MEMORY_FRACTION = 8;
+
+    private final LruCache<Long, byte[]> mTiles;
+    /**
+     * Incremented for every new point and every time the cached tiles are dropped, used to
+     * discard tiles rendered before.
+     */
+    private volatile int mGeneration;
+    /**
+     * Whether the cached tiles were rendered by the {@link DistanceFieldRasterizer}.
+     */
+    private volatile boolean mDistanceField;
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mPatched = new AtomicInteger();
+
+    public TileCache() {
+        this((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MEMORY_FRACTION));
+    }
+
+    public TileCache(int maxBytes) {
+        LOGGER.debug("Tile cache size is {} bytes", maxBytes);
+        mTiles = new LruCache<Long, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, byte[] mask) {
+                return mask.length;
+            }
+        };
+    }
+
+    /**
+     * Packs the tile coordinates.
+     */
+    static long key(int x, int y, int zoom) {
+        return ((long) zoom << 46) | ((long) x << 23) | y;
+    }
+
+    static int zoomOf(long key) {
+        return (int) (key >>> 46);
+    }
+
+    static int xOf(long key) {
+        return (int) (key >>> 23) & 0x7fffff;
+    }
+
+    static int yOf(long key) {
+        return (int) key & 0x7fffff;
+    }
+
+    /**
+     * @return the mask of the tile, synchronize on it while reading as new points are drawn on it
+     */
+    public byte[] get(int x, int y, int zoom) {
+        byte[] mask = mTiles.get(key(x, y, zoom));
+        if (mask == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return mask;
+    }
+
+    /**
+     * Caches a rendered tile unless the cache was cleared after the rendering started.
+     *
+     * @param generation the generation read with {@link #getGeneration()} before rendering
+     */
+    public void put(int x, int y, int zoom, byte[] mask, int generation) {
+        if (generation != mGeneration) {
+            LOGGER.debug("Tile {} {} rendered with stale data, not caching", x, y);
+            return;
+        }
+        mTiles.put(key(x, y, zoom), mask);
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public boolean isDistanceField() {
+        return mDistanceField;
+    }
+
+    /**
+     * Sets the renderer of the cached tiles, dropping all of them if it changed.
+     *
+     * @param distanceField true for the {@link DistanceFieldRasterizer}, false for the discs
+     * @return true if the renderer changed
+     */
+    public synchronized boolean setDistanceField(boolean distanceField) {
+        if (mDistanceField == distanceField) {
+            return false;
+        }
+        LOGGER.debug("Fog renderer changed, dropping all cached tiles");
+        mDistanceField = distanceField;
+        clear();
+        return true;
+    }
+
+    public void clear() {
+        mGeneration++;
+        mTiles.evictAll();
+    }
+
+    /**
+     * Releases memory according to the level received by the application in
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            LOGGER.debug("Dropping all cached tiles, trim level {}", level);
+            mTiles.evictAll();
+            TileEncoder.clearFlatTiles();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            LOGGER.debug("Halving cached tiles, trim level {}", level);
+            mTiles.trimToSize(mTiles.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Draws the disc of a newly explored point on the cached tiles it overlaps.
+     */
+    @Override
+    public void visit(int latitudeE7, int longitudeE7) {
+        mGeneration++;
+        double latitude = PointStore.fromE7(latitudeE7);
+        double longitude = PointStore.fromE7(longitudeE7);
+        int[] range = new int[4];
+        int[] childRange = new int[4];
+        FogRasterizer rasterizer = new FogRasterizer(ExploredTileProvider.TILE_SIZE);
+        int patched = 0;
+        int removed = 0;
+        // children are updated before their parents
+        for (int zoom = ExploredTileProvider.MAX_ZOOM; zoom >= 0; zoom--) {
+            int[] swap = childRange;
+            childRange = range;
+            range = TileBucketIndex.touchedTiles(latitude, longitude, zoom, swap);
+            for (int x = range[0]; x <= range[1]; x++) {
+                for (int y = range[2]; y <= range[3]; y++) {
+                    long key = key(x, y, zoom);
+                    byte[] mask = mTiles.get(key);
+                    if (mask == null) {
+                        continue;
+                    }
+                    if (zoom >= TilePyramid.BASE_ZOOM) {
+                        synchronized (mask) {
+                            rasterizer.begin(mask, x, y, zoom,
+                                    ExploredTileProvider.discRadius(x, y, zoom),
+                                    ExploredTileProvider.shadingPasses(zoom),
+                                    ExploredTileProvider.TRANSPARENCY);
+                            rasterizer.setNearest(mDistanceField);
+                            rasterizer.drawPoint(latitude, longitude);
+                        }
+                        patched++;
+                    } else if (downsampleChildren(mask, x, y, zoom, childRange)) {
+                        patched++;
+                    } else {
+                        // built again from the children when requested
+                        mTiles.remove(key);
+                        removed++;
+                    }
+                }
+            }
+        }
+        mPatched.addAndGet(patched);
+        LOGGER.debug("Updated {} cached tiles with the new point, removed {}", patched, removed);
+    }
+
+    /**
+     * Downsamples again the quarters of a cached pyramid tile whose children were changed.
+     *
+     * @param childRange the tiles changed at the next zoom level
+     * @return false if a changed child is not cached, the tile can not be updated
+     */
+    private boolean downsampleChildren(byte[] mask, int x, int y, int zoom, int[] childRange) {
+        int size = ExploredTileProvider.TILE_SIZE;
+        int lastX = Math.min(2 * x + 1, childRange[1]);
+        int lastY = Math.min(2 * y + 1, childRange[3]);
+        for (int childX = Math.max(2 * x, childRange[0]); childX <= lastX; childX++) {
+            for (int childY = Math.max(2 * y, childRange[2]); childY <= lastY; childY++) {
+                byte[] child = mTiles.get(key(childX, childY, zoom + 1));
+                if (child == null) {
+                    return false;
+                }
+                synchronized (mask) {
+                    TilePyramid.downsample(child, childX, childY, mask, size);
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getSizeBytes() {
+        return mTiles.size();
+    }
+
+    public int getMaxSizeBytes() {
+        return mTiles.maxSize();
+    }
+
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the number of cached tiles updated with new points
+     */
+    public int getPatchedCount() {
+        return mPatched.get();
+    }
+
+    public int getEvictionCount() {
+        return mTiles.evictionCount();
+    }
+}
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.graphics.Bitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes blended fog masks into PNG tiles. Two modes are available, selected in the preferences:
+ * <ul>
+ * <li>{@link #FAST} writes an indexed PNG directly from the mask, the palette being black with
+ * the transparency of the index, compressed at the fastest zlib level. Fog masks are mostly
+ * flat so the lower compression costs little size.</li>
+ * <li>{@link #PNG} draws the mask on a bitmap and compresses it with {@link Bitmap#compress}.</li>
+ * </ul>
+ * Tiles with other colours, as the heatmap, are encoded from palette indexes the same way.
+ * <p/>
+ * Masks of a single alpha value, fully fogged or fully cleared tiles, are encoded once per value
+ * and the bytes are shared. Buffers are kept per thread and reused for every tile, bitmaps come
+ * from a pool shared by all threads.
+ * <p/>
+ * Each mode counts the encoded tiles and the time spent encoding them so the modes can be
+ * compared.
+ */
+public class TileEncoder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileEncoder.class);
+
+    public static final String MODE_FAST = "fast";
+    public static final String MODE_PNG = "png";
+
+    public static final TileEncoder FAST = new TileEncoder(MODE_FAST);
+    public static final TileEncoder PNG = new TileEncoder(MODE_PNG);
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int PALETTE_SIZE = 256;
+    /**
+     * Black with the transparency of the index, the palette of the fog masks.
+     */
+    private static final int[] ALPHA_PALETTE = new int[PALETTE_SIZE];
+
+    static {
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            ALPHA_PALETTE[i] = i << 24;
+        }
+    }
+    /**
+     * Idle bitmaps kept, one per render thread is enough.
+     */
+    private static final BitmapPool BITMAPS = new BitmapPool(ExploredTileProvider.TILE_SIZE,
+            ExploredTileProvider.RENDER_THREADS);
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private final String mMode;
+    /**
+     * Encoded tiles of a single alpha value, by alpha.
+     */
+    private final AtomicReferenceArray<byte[]> mFlatTiles = new AtomicReferenceArray<byte[]>(256);
+
+    private final AtomicLong mEncoded = new AtomicLong();
+    private final AtomicLong mEncodeNanos = new AtomicLong();
+    private final AtomicLong mShared = new AtomicLong();
+
+    private TileEncoder(String mode) {
+        mMode = mode;
+    }
+
+    /**
+     * @return the encoder of the mode stored in the preferences, the fast encoder for unknown
+     * modes
+     */
+    public static TileEncoder forMode(String mode) {
+        return MODE_PNG.equals(mode) ? PNG : FAST;
+    }
+
+    /**
+     * Drops the shared encoded tiles of all modes and the idle bitmaps, they are created again
+     * when needed.
+     */
+    public static void clearFlatTiles() {
+        for (int alpha = 0; alpha < PALETTE_SIZE; alpha++) {
+            FAST.mFlatTiles.set(alpha, null);
+            PNG.mFlatTiles.set(alpha, null);
+        }
+        BITMAPS.clear();
+    }
+
+    /**
+     * Encodes a blended mask of size * size pixels.
+     *
+     * @return the PNG bytes, shared between tiles of a single alpha value so they must not be
+     * modified
+     */
+    public byte[] encode(byte[] mask, int size) {
+        int alpha = mask[0] & 0xff;
+        for (int i = 1; i < mask.length; i++) {
+            if ((mask[i] & 0xff) != alpha) {
+                return encodeTimed(mask, size, ALPHA_PALETTE);
+            }
+        }
+        return flatTile(alpha, size);
+    }
+
+    /**
+     * Encodes size * size pixels given as indexes in a palette.
+     *
+     * @param palette the 256 ARGB colours of the indexes
+     */
+    public byte[] encode(byte[] indexes, int size, int[] palette) {
+        return encodeTimed(indexes, size, palette);
+    }
+
+    /**
+     * @return the shared encoded tile of a single alpha value
+     */
+    public byte[] flatTile(int alpha, int size) {
+        byte[] data = mFlatTiles.get(alpha);
+        if (data == null) {
+            Buffers buffers = BUFFERS.get();
+            byte[] mask = buffers.mask(size);
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] = (byte) alpha;
+            }
+            data = encodeTimed(mask, size, ALPHA_PALETTE);
+            mFlatTiles.set(alpha, data);
+        } else {
+            mShared.incrementAndGet();
+        }
+        return data;
+    }
+
+    private byte[] encodeTimed(byte[] indexes, int size, int[] palette) {
+        long start = System.nanoTime();
+        byte[] data = MODE_PNG.equals(mMode) ? encodeBitmap(indexes, size, palette)
+                : encodeIndexed(indexes, size, palette);
+        long elapsed = System.nanoTime() - start;
+        mEncoded.incrementAndGet();
+        mEncodeNanos.addAndGet(elapsed);
+        LOGGER.debug("Encoded {} tile of {} bytes in {} us", mMode, data.length, elapsed / 1000);
+        return data;
+    }
+
+    private static byte[] encodeBitmap(byte[] indexes, int size, int[] palette) {
+        Buffers buffers = BUFFERS.get();
+        boolean pooled = size == ExploredTileProvider.TILE_SIZE;
+        Bitmap bitmap = pooled ? BITMAPS.acquire()
+                : Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        try {
+            int[] pixels = buffers.pixels(size);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = palette[indexes[i] & 0xff];
+            }
+            bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+            ByteArrayOutputStream stream = buffers.stream();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+            return stream.toByteArray();
+        } finally {
+            if (pooled) {
+                BITMAPS.release(bitmap);
+            } else {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Writes an 8 bit indexed PNG of the pixel indexes and their palette.
+     */
+    static byte[] encodeIndexed(byte[] indexes, int size, int[] palette) {
+        Buffers buffers = BUFFERS.get();
+        ByteArrayOutputStream stream = buffers.stream();
+        stream.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+
+        byte[] header = buffers.chunk(13);
+        writeInt(header, 0, size);
+        writeInt(header, 4, size);
+        header[8] = 8;
+        header[9] = COLOR_TYPE_INDEXED;
+        // deflate compression, adaptive filtering and no interlacing
+        header[10] = 0;
+        header[11] = 0;
+        header[12] = 0;
+        writeChunk(buffers, "IHDR", header, 13);
+
+        byte[] colors = buffers.chunk(PALETTE_SIZE * 3);
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            colors[3 * i] = (byte) (palette[i] >> 16);
+            colors[3 * i + 1] = (byte) (palette[i] >> 8);
+            colors[3 * i + 2] = (byte) palette[i];
+        }
+        writeChunk(buffers, "PLTE", colors, PALETTE_SIZE * 3);
+        byte[] transparency = buffers.chunk(PALETTE_SIZE);
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            transparency[i] = (byte) (palette[i] >>> 24);
+        }
+        writeChunk(buffers, "tRNS", transparency, PALETTE_SIZE);
+
+        // each row starts with filter type none
+        byte[] rows = buffers.rows(size);
+        for (int row = 0; row < size; row++) {
+            rows[row * (size + 1)] = 0;
+            System.arraycopy(indexes, row * size, rows, row * (size + 1) + 1, size);
+        }
+        Deflater deflater = buffers.mDeflater;
+        deflater.reset();
+        deflater.setInput(rows, 0, size * (size + 1));
+        deflater.finish();
+        int length = 0;
+        byte[] compressed = buffers.chunk(rows.length);
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = buffers.growChunk(length);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        writeChunk(buffers, "IDAT", compressed, length);
+        writeChunk(buffers, "IEND", compressed, 0);
+        return stream.toByteArray();
+    }
+
+    private static void writeChunk(Buffers buffers, String type, byte[] data, int length) {
+        ByteArrayOutputStream stream = buffers.mStream;
+        byte[] field = buffers.mField;
+        writeInt(field, 0, length);
+        stream.write(field, 0, 4);
+        for (int i = 0; i < 4; i++) {
+            field[i] = (byte) type.charAt(i);
+        }
+        stream.write(field, 0, 4);
+        CRC32 crc = buffers.mCrc;
+        crc.reset();
+        crc.update(field, 0, 4);
+        crc.update(data, 0, length);
+        stream.write(data, 0, length);
+        writeInt(field, 0, (int) crc.getValue());
+        stream.write(field, 0, 4);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    public String getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return the number of tiles encoded, not counting the shared single value tiles
+     */
+    public long getEncodedCount() {
+        return mEncoded.get();
+    }
+
+    /**
+     * @return the total time spent encoding tiles in nanoseconds
+     */
+    public long getEncodeTimeNanos() {
+        return mEncodeNanos.get();
+    }
+
+    /**
+     * @return the average time spent encoding a tile in microseconds
+     */
+    public long getAverageEncodeMicros() {
+        long encoded = mEncoded.get();
+        return encoded == 0 ? 0 : mEncodeNanos.get() / encoded / 1000;
+    }
+
+    /**
+     * @return the number of tiles returned from the shared single value tiles
+     */
+    public long getSharedCount() {
+        return mShared.get();
+    }
+
+    /**
+     * Encoding buffers of a thread, sized for the largest tile encoded so far.
+     */
+    private static class Buffers {
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mField = new byte[4];
+        private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+        private byte[] mChunk = new byte[0];
+        private byte[] mRows = new byte[0];
+        private byte[] mMask = new byte[0];
+        private int[] mPixels = new int[0];
+
+        ByteArrayOutputStream stream() {
+            mStream.reset();
+            return mStream;
+        }
+
+        byte[] chunk(int length) {
+            if (mChunk.length < length) {
+                mChunk = new byte[length];
+            }
+            return mChunk;
+        }
+
+        byte[] growChunk(int length) {
+            byte[] chunk = new byte[mChunk.length * 2 + 64];
+            System.arraycopy(mChunk, 0, chunk, 0, length);
+            mChunk = chunk;
+            return chunk;
+        }
+
+        byte[] rows(int size) {
+            if (mRows.length < size * (size + 1)) {
+                mRows = new byte[size * (size + 1)];
+            }
+            return mRows;
+        }
+
+        byte[] mask(int size) {
+            if (mMask.length != size * size) {
+                mMask = new byte[size * size];
+            }
+            return mMask;
+        }
+
+        int[] pixels(int size) {
+            if (mPixels.length != size * size) {
+                mPixels = new int[size * size];
+            }
+            return mPixels;
+        }
+    }
+}
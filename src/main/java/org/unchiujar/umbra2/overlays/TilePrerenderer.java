@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unchiujar.umbra2.backend.ExploredProvider;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Renders in the background the tiles changed by newly explored points, at the zoom levels the
+ * map is most often viewed at, so the map finds them in the tile caches when it is opened.
+ * <p/>
+ * Changed tiles are queued as points arrive and rendered on a low priority timer thread, only
+ * while the device is charging or the map has not requested tiles for {@link #IDLE_DELAY}. Tiles
+ * are rendered in batches of {@link #BATCH_SIZE}, waiting {@link #RETRY_DELAY} between batches
+ * and while the conditions are not met.
+ * <p/>
+ * The zoom levels are counted from the tiles requested by the map and the most requested ones are
+ * kept in the preferences. Zoom levels below the {@link TilePyramid} base zoom are not rendered
+ * in the background, they are downsampled quickly from the cached tiles.
+ */
+public class TilePrerenderer implements PointVisitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TilePrerenderer.class);
+    private static final String ZOOMS = "org.unchiujar.umbra.prerender.zooms";
+    private static final String DEFAULT_ZOOMS = "16";
+    /**
+     * Number of zoom levels rendered.
+     */
+    private static final int ZOOM_COUNT = 2;
+    /**
+     * Time without tile requests after which the map is considered idle.
+     */
+    private static final long IDLE_DELAY = 60 * 1000;
+    /**
+     * Delay before rendering the first queued tiles.
+     */
+    private static final long START_DELAY = 10 * 1000;
+    private static final long RETRY_DELAY = 30 * 1000;
+    private static final int BATCH_SIZE = 16;
+    private static final int MAX_PENDING = 512;
+
+    private final Context mContext;
+    private final ExploredProvider mSource;
+    private final TileCache mTileCache;
+    private final DiskTileCache mDiskTileCache;
+    private final Timer mTimer = new Timer("TilePrerenderer");
+    /**
+     * Queued tiles as tile cache keys, oldest first.
+     */
+    private final Set<Long> mPending = new LinkedHashSet<Long>();
+    private final int[] mRequests = new int[ExploredTileProvider.MAX_ZOOM + 1];
+    private int[] mZooms;
+    private boolean mScheduled;
+    private volatile long mLastRequest;
+    /**
+     * Renderer of the queued tiles, created on the timer thread.
+     */
+    private ExploredTileProvider mRenderer;
+
+    // statistics
+    private long mRendered;
+    private long mDeferred;
+
+    public TilePrerenderer(Context context, ExploredProvider source, TileCache tileCache,
+                           DiskTileCache diskTileCache) {
+        mContext = context;
+        mSource = source;
+        mTileCache = tileCache;
+        mDiskTileCache = diskTileCache;
+        mZooms = parseZooms(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(ZOOMS, DEFAULT_ZOOMS));
+        LOGGER.debug("Rendering changed tiles in background at {} zoom levels", mZooms.length);
+    }
+
+    private static int[] parseZooms(String value) {
+        String[] parts = value.split(",");
+        int[] zooms = new int[parts.length];
+        int count = 0;
+        for (String part : parts) {
+            try {
+                int zoom = Integer.parseInt(part.trim());
+                if (zoom >= TilePyramid.BASE_ZOOM && zoom <= ExploredTileProvider.MAX_ZOOM) {
+                    zooms[count++] = zoom;
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid zoom level {}", part);
+            }
+        }
+        return Arrays.copyOf(zooms, count);
+    }
+
+    /**
+     * Records a tile requested by the map, the map is not idle and the zoom level is counted.
+     */
+    public void tileRequested(int zoom) {
+        mLastRequest = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mRequests[zoom]++;
+        }
+    }
+
+    /**
+     * Queues the tiles changed by a newly explored point.
+     */
+    @Override
+    public synchronized void visit(int latitudeE7, int longitudeE7) {
+        double latitude = PointStore.fromE7(latitudeE7);
+        double longitude = PointStore.fromE7(longitudeE7);
+        int[] range = new int[4];
+        for (int zoom : mZooms) {
+            TileBucketIndex.touchedTiles(latitude, longitude, zoom, range);
+            for (int x = range[0]; x <= range[1]; x++) {
+                for (int y = range[2]; y <= range[3]; y++) {
+                    mPending.add(TileCache.key(x, y, zoom));
+                }
+            }
+        }
+        // the oldest tiles are the most likely to have been rendered by the map since
+        Iterator<Long> oldest = mPending.iterator();
+        while (mPending.size() > MAX_PENDING) {
+            oldest.next();
+            oldest.remove();
+        }
+        schedule(START_DELAY);
+    }
+
+    private void schedule(long delay) {
+        if (mScheduled || mPending.isEmpty()) {
+            return;
+        }
+        mScheduled = true;
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                renderBatch();
+            }
+        }, delay);
+    }
+
+    private void renderBatch() {
+        long[] batch;
+        synchronized (this) {
+            mScheduled = false;
+            if (!isCharging() && SystemClock.elapsedRealtime() - mLastRequest < IDLE_DELAY) {
+                mDeferred++;
+                LOGGER.debug("Map in use and not charging, deferring {} tiles", mPending.size());
+                schedule(RETRY_DELAY);
+                return;
+            }
+            batch = new long[Math.min(BATCH_SIZE, mPending.size())];
+            Iterator<Long> pending = mPending.iterator();
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = pending.next();
+                pending.remove();
+            }
+        }
+        if (mRenderer == null) {
+            mRenderer = new ExploredTileProvider(mContext);
+        }
+        for (long key : batch) {
+            try {
+                render(TileCache.zoomOf(key), TileCache.xOf(key), TileCache.yOf(key));
+            } catch (RuntimeException e) {
+                // keep the timer thread alive for the next tiles
+                LOGGER.error("Error rendering tile in background", e);
+            }
+        }
+        synchronized (this) {
+            mRendered += batch.length;
+            LOGGER.debug("Rendered {} tiles in background, {} queued", batch.length, mPending.size());
+            saveZooms();
+            schedule(RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Renders a tile with the explored points its discs can reach.
+     */
+    private void render(int zoom, int x, int y) {
+        // read before loading the points so tiles missing points explored meanwhile are not cached
+        int generation = mTileCache.getGeneration();
+        int diskGeneration = mDiskTileCache.getGeneration();
+        int tiles = 1 << zoom;
+        int ring = Math.max(1, (ExploredTileProvider.discRadius(x, y, zoom)
+                + ExploredTileProvider.TILE_SIZE - 1) / ExploredTileProvider.TILE_SIZE);
+        double north = MercatorProjection.latitude((double) Math.max(0, y - ring) / tiles);
+        double south = MercatorProjection.latitude((double) Math.min(tiles, y + ring + 1) / tiles);
+        double west = Math.max(-180, -180 + (x - ring) * 360.0 / tiles);
+        double east = Math.min(180, -180 + (x + ring + 1) * 360.0 / tiles);
+        final PointStore points = new PointStore();
+        mSource.visitVisited(PointStore.toE7(south), PointStore.toE7(west), PointStore.toE7(north),
+                PointStore.toE7(east), new PointVisitor() {
+                    @Override
+                    public void visit(int latitudeE7, int longitudeE7) {
+                        points.add(latitudeE7, longitudeE7);
+                    }
+                });
+        mRenderer.setExplored(points, zoom);
+        mRenderer.coverage(x, y, zoom, generation, diskGeneration);
+    }
+
+    private boolean isCharging() {
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Keeps the most requested zoom levels for the next tiles and the next start.
+     */
+    private void saveZooms() {
+        int[] zooms = new int[ZOOM_COUNT];
+        int count = 0;
+        boolean[] used = new boolean[mRequests.length];
+        for (int i = 0; i < ZOOM_COUNT; i++) {
+            int best = -1;
+            for (int zoom = TilePyramid.BASE_ZOOM; zoom < mRequests.length; zoom++) {
+                if (!used[zoom] && mRequests[zoom] > 0
+                        && (best < 0 || mRequests[zoom] > mRequests[best])) {
+                    best = zoom;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            used[best] = true;
+            zooms[count++] = best;
+        }
+        zooms = Arrays.copyOf(zooms, count);
+        if (count == 0 || Arrays.equals(zooms, mZooms)) {
+            return;
+        }
+        mZooms = zooms;
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            value.append(i == 0 ? "" : ",").append(zooms[i]);
+        }
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(ZOOMS, value.toString()).apply();
+    }
+
+    public void destroy() {
+        mTimer.cancel();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized long getRenderedCount() {
+        return mRendered;
+    }
+
+    /**
+     * @return the number of times rendering was postponed as the map was in use
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferred;
+    }
+}
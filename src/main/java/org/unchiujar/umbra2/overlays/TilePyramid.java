@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+/**
+ * Coverage masks of the tiles below {@link #BASE_ZOOM} are not drawn from the explored points but
+ * downsampled from the four tiles of the next zoom level, so a zoomed out tile costs four tiles
+ * instead of every explored point it covers.
+ * <p/>
+ * Each pixel keeps the clearest of the 2 x 2 pixels it replaces so explored points stay visible
+ * as they shrink, as the minimum disc radius does for drawn tiles.
+ */
+final class TilePyramid {
+    /**
+     * Lowest zoom level whose tiles are drawn.
+     */
+    static final int BASE_ZOOM = 12;
+
+    private TilePyramid() {
+    }
+
+    /**
+     * Downsamples a tile of the next zoom level into its quarter of the parent tile.
+     *
+     * @param child  the child coverage mask or null for a fully fogged child
+     * @param childX the x coordinate of the child tile, its parity selects the quarter
+     * @param childY the y coordinate of the child tile
+     * @param parent the parent coverage mask
+     * @param size   width and height of the tiles in pixels
+     */
+    static void downsample(byte[] child, int childX, int childY, byte[] parent, int size) {
+        int half = size / 2;
+        int left = (childX & 1) * half;
+        int top = (childY & 1) * half;
+        if (child == null) {
+            for (int row = top; row < top + half; row++) {
+                for (int column = left; column < left + half; column++) {
+                    parent[row * size + column] = (byte) 255;
+                }
+            }
+            return;
+        }
+        synchronized (child) {
+            for (int row = 0; row < half; row++) {
+                int source = 2 * row * size;
+                int target = (top + row) * size + left;
+                for (int column = 0; column < half; column++, source += 2, target++) {
+                    int value = Math.min(Math.min(child[source] & 0xff, child[source + 1] & 0xff),
+                            Math.min(child[source + size] & 0xff, child[source + size + 1] & 0xff));
+                    parent[target] = (byte) value;
+                }
+            }
+        }
+    }
+}
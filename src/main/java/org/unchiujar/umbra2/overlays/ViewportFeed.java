@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unchiujar.umbra2.backend.ExploredProvider;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+
+/**
+ * Feeds the fog overlay with the explored points around the visible region.
+ * <p/>
+ * Points are loaded for the visible region enlarged by a margin on every side. While the camera
+ * moves inside the loaded region the loaded points are reused. When it moves outside only the
+ * newly exposed strips are fetched from the explored provider and the points that fell out of
+ * the new region are dropped.
+ */
+public class ViewportFeed implements PointVisitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ViewportFeed.class);
+    /**
+     * Margin loaded on each side of the visible region, as a fraction of the visible span.
+     */
+    private static final double MARGIN = 0.5d;
+    /**
+     * The loaded region is reloaded from scratch when it is this many times larger than the
+     * region needed for the current view, for example after zooming in from a wide view.
+     */
+    private static final long MAX_OVERSIZE = 16;
+    private static final int MAX_LATITUDE = 900000000;
+    private static final int MAX_LONGITUDE = 1800000000;
+
+    private final ExploredProvider mSource;
+
+    private PointStore mPoints = new PointStore();
+    private boolean mLoaded;
+    private int mSouth;
+    private int mWest;
+    private int mNorth;
+    private int mEast;
+
+    // feed statistics
+    private long mReused;
+    private long mStripLoads;
+    private long mFullLoads;
+
+    public ViewportFeed(ExploredProvider source) {
+        mSource = source;
+    }
+
+    /**
+     * Makes sure the points around the visible region are loaded.
+     *
+     * @return the store containing the points around the visible region, the same instance is
+     * returned as long as the loaded points are only added to
+     */
+    public synchronized PointStore update(double south, double west, double north, double east) {
+        int visibleSouth = PointStore.toE7(south);
+        int visibleNorth = PointStore.toE7(north);
+        int visibleWest = PointStore.toE7(west);
+        int visibleEast = PointStore.toE7(east);
+        if (visibleWest > visibleEast) {
+            // the view crosses the antimeridian, load the whole longitude range
+            visibleWest = -MAX_LONGITUDE;
+            visibleEast = MAX_LONGITUDE;
+        }
+
+        int latitudeMargin = (int) ((visibleNorth - (long) visibleSouth) * MARGIN);
+        int longitudeMargin = (int) ((visibleEast - (long) visibleWest) * MARGIN);
+        int targetSouth = Math.max(-MAX_LATITUDE, visibleSouth - latitudeMargin);
+        int targetNorth = Math.min(MAX_LATITUDE, visibleNorth + latitudeMargin);
+        int targetWest = (int) Math.max(-MAX_LONGITUDE, (long) visibleWest - longitudeMargin);
+        int targetEast = (int) Math.min(MAX_LONGITUDE, (long) visibleEast + longitudeMargin);
+        long targetArea = area(targetSouth, targetWest, targetNorth, targetEast);
+
+        if (mLoaded && visibleSouth >= mSouth && visibleNorth <= mNorth
+                && visibleWest >= mWest && visibleEast <= mEast
+                && area(mSouth, mWest, mNorth, mEast) / MAX_OVERSIZE <= targetArea) {
+            mReused++;
+            return mPoints;
+        }
+
+        int intersectSouth = Math.max(targetSouth, mSouth);
+        int intersectNorth = Math.min(targetNorth, mNorth);
+        int intersectWest = Math.max(targetWest, mWest);
+        int intersectEast = Math.min(targetEast, mEast);
+        if (!mLoaded || intersectSouth > intersectNorth || intersectWest > intersectEast) {
+            mPoints = new PointStore();
+            mSource.visitVisited(targetSouth, targetWest, targetNorth, targetEast, mPoints);
+            mFullLoads++;
+        } else {
+            if (intersectSouth != mSouth || intersectNorth != mNorth
+                    || intersectWest != mWest || intersectEast != mEast) {
+                // part of the loaded region is no longer needed, keep only the overlap
+                PointStore kept = new PointStore(mPoints.size());
+                mPoints.forEachInBounds(intersectSouth, intersectWest, intersectNorth,
+                        intersectEast, kept);
+                mPoints = kept;
+            }
+            // strips of the target region outside the overlap
+            if (targetSouth < intersectSouth) {
+                mSource.visitVisited(targetSouth, targetWest, intersectSouth - 1, targetEast, mPoints);
+            }
+            if (targetNorth > intersectNorth) {
+                mSource.visitVisited(intersectNorth + 1, targetWest, targetNorth, targetEast, mPoints);
+            }
+            if (targetWest < intersectWest) {
+                mSource.visitVisited(intersectSouth, targetWest, intersectNorth, intersectWest - 1, mPoints);
+            }
+            if (targetEast > intersectEast) {
+                mSource.visitVisited(intersectSouth, intersectEast + 1, intersectNorth, targetEast, mPoints);
+            }
+            mStripLoads++;
+        }
+        mSouth = targetSouth;
+        mNorth = targetNorth;
+        mWest = targetWest;
+        mEast = targetEast;
+        mLoaded = true;
+        LOGGER.debug("Loaded {} points, reused {} strip loads {} full loads {}",
+                mPoints.size(), mReused, mStripLoads, mFullLoads);
+        return mPoints;
+    }
+
+    private static long area(int south, int west, int north, int east) {
+        return Math.max(1L, north - (long) south) * Math.max(1L, east - (long) west);
+    }
+
+    /**
+     * Adds a newly explored point to the loaded points if it is inside the loaded region. The
+     * source notifies its new points after adding them, a point added just before a load was
+     * already loaded and is not added again.
+     */
+    @Override
+    public synchronized void visit(int latitudeE7, int longitudeE7) {
+        if (mLoaded && latitudeE7 >= mSouth && latitudeE7 <= mNorth
+                && longitudeE7 >= mWest && longitudeE7 <= mEast
+                && !mPoints.contains(latitudeE7, longitudeE7)) {
+            mPoints.add(latitudeE7, longitudeE7);
+        }
+    }
+
+    /**
+     * @return true if the points are the loaded points and the loaded region contains the region
+     */
+    public synchronized boolean isLoaded(PointStore points, double south, double west,
+                                         double north, double east) {
+        return mLoaded && points == mPoints
+                && PointStore.toE7(south) >= mSouth && PointStore.toE7(north) <= mNorth
+                && PointStore.toE7(west) >= mWest && PointStore.toE7(east) <= mEast;
+    }
+
+    /**
+     * Drops the loaded points, the next update loads the region from scratch.
+     */
+    public synchronized void invalidate() {
+        mLoaded = false;
+        mPoints = new PointStore();
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.utils;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive long values using open addressing with linear probing. Avoids the boxing and
+ * per entry objects of a {@link java.util.HashSet} when storing large numbers of packed keys.
+ * <p/>
+ * Not thread safe, callers are expected to synchronize access.
+ */
+public class LongHashSet {
+    /**
+     * Marker for empty table slots. The value itself is tracked by a separate flag.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] mTable;
+    private int mMask;
+    private int mSize;
+    private int mResizeThreshold;
+    private boolean mHasEmptyValue;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(tableSizeFor((int) (expectedSize / LOAD_FACTOR) + 1));
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = 16;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private void allocate(int tableSize) {
+        mTable = new long[tableSize];
+        Arrays.fill(mTable, EMPTY);
+        mMask = tableSize - 1;
+        mResizeThreshold = (int) (tableSize * LOAD_FACTOR);
+    }
+
+    /**
+     * Murmur3 finalizer, spreads packed coordinates that differ only in the low bits.
+     */
+    private static int slot(long value, int mask) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value & mask;
+    }
+
+    /**
+     * Adds the value to the set.
+     *
+     * @param value the value to add
+     * @return true if the value was not already present
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (mHasEmptyValue) {
+                return false;
+            }
+            mHasEmptyValue = true;
+            mSize++;
+            return true;
+        }
+        int index = slot(value, mMask);
+        while (mTable[index] != EMPTY) {
+            if (mTable[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mMask;
+        }
+        mTable[index] = value;
+        if (++mSize > mResizeThreshold) {
+            rehash(mTable.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return mHasEmptyValue;
+        }
+        int index = slot(value, mMask);
+        while (mTable[index] != EMPTY) {
+            if (mTable[index] == value) {
+                return true;
+            }
+            index = (index + 1) & mMask;
+        }
+        return false;
+    }
+
+    private void rehash(int tableSize) {
+        long[] old = mTable;
+        allocate(tableSize);
+        for (long value : old) {
+            if (value != EMPTY) {
+                int index = slot(value, mMask);
+                while (mTable[index] != EMPTY) {
+                    index = (index + 1) & mMask;
+                }
+                mTable[index] = value;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(mTable, EMPTY);
+        mHasEmptyValue = false;
+        mSize = 0;
+    }
+
+    /**
+     * @return a new array containing the values in the set, in no particular order
+     */
+    public long[] toArray() {
+        long[] values = new long[mSize];
+        int index = 0;
+        if (mHasEmptyValue) {
+            values[index++] = EMPTY;
+        }
+        for (long value : mTable) {
+            if (value != EMPTY) {
+                values[index++] = value;
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.backend;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PointStoreTest {
+
+    private static class Collector implements PointVisitor {
+        private final List<Long> mVisited = new ArrayList<Long>();
+
+        @Override
+        public void visit(int latitudeE7, int longitudeE7) {
+            mVisited.add(((long) latitudeE7 << 32) | (longitudeE7 & 0xffffffffL));
+        }
+    }
+
+    @Test
+    public void keepsAllPoints() {
+        PointStore store = new PointStore(1);
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            store.add(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        }
+        Collector collector = new Collector();
+        store.forEach(collector);
+        assertEquals(5000, store.size());
+        assertEquals(5000, collector.mVisited.size());
+    }
+
+    @Test
+    public void boundsQueryMatchesLinearScan() {
+        PointStore store = new PointStore();
+        Random random = new Random(7);
+        int[] latitudes = new int[20000];
+        int[] longitudes = new int[20000];
+        for (int i = 0; i < latitudes.length; i++) {
+            latitudes[i] = PointStore.toE7(44 + random.nextDouble());
+            longitudes[i] = PointStore.toE7(26 + random.nextDouble() * 2 - 1);
+            store.add(latitudes[i], longitudes[i]);
+            if (i == 15000) {
+                // leave part of the points in the unsorted tail
+                store.forEach(new Collector());
+            }
+        }
+        int south = PointStore.toE7(44.2);
+        int north = PointStore.toE7(44.45);
+        int west = PointStore.toE7(25.9);
+        int east = PointStore.toE7(26.3);
+        int expected = 0;
+        for (int i = 0; i < latitudes.length; i++) {
+            if (latitudes[i] >= south && latitudes[i] <= north
+                    && longitudes[i] >= west && longitudes[i] <= east) {
+                expected++;
+            }
+        }
+        Collector collector = new Collector();
+        store.forEachInBounds(south, west, north, east, collector);
+        assertEquals(expected, collector.mVisited.size());
+    }
+
+    @Test
+    public void negativeCoordinatesSurviveSorting() {
+        PointStore store = new PointStore();
+        store.add(-33.8688d, -151.2093d);
+        store.add(33.8688d, 151.2093d);
+        Collector collector = new Collector();
+        store.forEachInBounds(PointStore.toE7(-34), PointStore.toE7(-152),
+                PointStore.toE7(-33), PointStore.toE7(-151), collector);
+        assertEquals(1, collector.mVisited.size());
+        assertEquals(PointStore.toE7(-33.8688d), (int) (collector.mVisited.get(0) >> 32));
+    }
+
+    @Test
+    public void containsFindsSortedAndUnsortedPoints() {
+        PointStore store = new PointStore();
+        Random random = new Random(11);
+        int[] latitudes = new int[3000];
+        int[] longitudes = new int[3000];
+        for (int i = 0; i < latitudes.length; i++) {
+            latitudes[i] = random.nextInt(1800000000) - 900000000;
+            longitudes[i] = random.nextInt(2000000000) - 1000000000;
+            store.add(latitudes[i], longitudes[i]);
+        }
+        for (int i = 0; i < latitudes.length; i++) {
+            assertTrue(store.contains(latitudes[i], longitudes[i]));
+            assertFalse(store.contains(latitudes[i] + 1, longitudes[i]));
+        }
+        // added after sorting, in the unsorted tail
+        store.add(-5, 7);
+        assertTrue(store.contains(-5, 7));
+        assertFalse(store.contains(7, -5));
+    }
+
+    @Test
+    public void visitsPointsAddedSinceInOrder() {
+        PointStore store = new PointStore();
+        store.add(1, 1);
+        int added = store.getAddedCount();
+        store.add(3, 3);
+        store.add(2, 2);
+        Collector collector = new Collector();
+        assertTrue(store.forEachAddedSince(added, collector));
+        assertEquals(2, collector.mVisited.size());
+        assertEquals(3, (int) (collector.mVisited.get(0) >> 32));
+        assertEquals(2, (int) (collector.mVisited.get(1) >> 32));
+
+        for (int i = 0; i < PointStore.RECENT_ADDS; i++) {
+            store.add(i, i);
+        }
+        assertFalse(store.forEachAddedSince(added, collector));
+        added = store.getAddedCount();
+        store.clear();
+        assertFalse(store.forEachAddedSince(added, collector));
+    }
+}
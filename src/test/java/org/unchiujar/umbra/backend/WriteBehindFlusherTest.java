@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.backend;
+
+import android.database.sqlite.SQLiteException;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class WriteBehindFlusherTest {
+
+    /**
+     * Keeps the written points, failing while asked to.
+     */
+    private static class FailingWriter implements WriteBehindFlusher.Writer {
+        private final List<Integer> mLatitudes = new ArrayList<Integer>();
+        private boolean mFailing = true;
+
+        @Override
+        public void insert(PointStore points) {
+            if (mFailing) {
+                throw new SQLiteException();
+            }
+            points.forEach(new PointVisitor() {
+                @Override
+                public void visit(int latitudeE7, int longitudeE7) {
+                    mLatitudes.add(latitudeE7);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void keepsPointsOfFailedFlush() {
+        FailingWriter writer = new FailingWriter();
+        WriteBehindFlusher flusher = new WriteBehindFlusher(writer);
+        try {
+            flusher.add(1, 10);
+            flusher.add(2, 20);
+            flusher.flush();
+            assertEquals(2, flusher.getPendingCount());
+            assertEquals(1, flusher.getFailedFlushes());
+            assertEquals(0, flusher.getFlushCount());
+
+            flusher.add(3, 30);
+            writer.mFailing = false;
+            flusher.flush();
+            assertEquals(0, flusher.getPendingCount());
+            assertEquals(1, flusher.getFlushCount());
+            assertEquals(3, flusher.getFlushedPoints());
+            assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)),
+                    new HashSet<Integer>(writer.mLatitudes));
+        } finally {
+            flusher.destroy();
+        }
+    }
+
+    @Test
+    public void writesFullBatchAfterDestroy() {
+        FailingWriter writer = new FailingWriter();
+        writer.mFailing = false;
+        WriteBehindFlusher flusher = new WriteBehindFlusher(writer);
+        flusher.destroy();
+        for (int i = 0; i < 256; i++) {
+            flusher.add(i, i);
+        }
+        assertEquals(0, flusher.getPendingCount());
+        assertEquals(256, writer.mLatitudes.size());
+    }
+
+    @Test
+    public void writesBatchesOverTheSizeAfterFailures() {
+        FailingWriter writer = new FailingWriter();
+        WriteBehindFlusher flusher = new WriteBehindFlusher(writer);
+        flusher.destroy();
+        // written on this thread after destroy, failing and kept pending
+        for (int i = 0; i < 300; i++) {
+            flusher.add(i, i);
+        }
+        assertEquals(300, flusher.getPendingCount());
+
+        writer.mFailing = false;
+        flusher.add(300, 300);
+        assertEquals(0, flusher.getPendingCount());
+        assertEquals(301, writer.mLatitudes.size());
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.location;
+
+import org.junit.Test;
+import org.unchiujar.umbra2.utils.LongHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeodesicGridTest {
+
+    @Test
+    public void sameCellForNearbyFixes() {
+        long first = GeodesicGrid.key(44.4268d, 26.1025d);
+        long second = GeodesicGrid.key(44.4268d + GeodesicGrid.ROW_DEGREES / 10, 26.1025d);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void differentCellsForDistantFixes() {
+        long first = GeodesicGrid.key(44.4268d, 26.1025d);
+        long second = GeodesicGrid.key(44.4268d + GeodesicGrid.ROW_DEGREES * 2, 26.1025d);
+        assertFalse(first == second);
+    }
+
+    @Test
+    public void cellCenterIsInsideCell() {
+        long key = GeodesicGrid.key(-33.8688d, 151.2093d);
+        assertEquals(key, GeodesicGrid.key(GeodesicGrid.centerLatitude(key),
+                GeodesicGrid.centerLongitude(key)));
+    }
+
+    @Test
+    public void cellWidthIsKeptTowardsThePoles() {
+        int equator = GeodesicGrid.row(0d);
+        int north = GeodesicGrid.row(60d);
+        // at 60 degrees the circumference is half of the equator circumference
+        assertEquals(0.5d, GeodesicGrid.columns(north) / (double) GeodesicGrid.columns(equator), 0.01d);
+    }
+
+    @Test
+    public void hashSetDeduplicatesKeys() {
+        LongHashSet set = new LongHashSet(4);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.add(GeodesicGrid.pack(i, i * 7)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(set.add(GeodesicGrid.pack(i, i * 7)));
+        }
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertEquals(10001, set.size());
+        assertEquals(10001, set.toArray().length);
+    }
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+import org.unchiujar.umbra2.backend.PointStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.unchiujar.umbra2.location.LocationOrder.METERS_RADIUS;
+
+public class CoverageIndexTest {
+    private static final int SIZE = ExploredTileProvider.TILE_SIZE;
+
+    @Test
+    public void measuresExploredDiscs() {
+        PointStore points = new PointStore();
+        points.add(44.43, 26.10);
+        CoverageIndex index = new CoverageIndex(new MemoryExploredProvider(points));
+
+        double disc = Math.PI * (METERS_RADIUS * 2) * (METERS_RADIUS * 2);
+        assertEquals(disc, index.getExploredArea(), disc * 0.1);
+        // a far away disc adds its area, an overlapping one only what it newly covers
+        index.visit(PointStore.toE7(45.43), PointStore.toE7(26.10));
+        assertEquals(2 * disc, index.getExploredArea(), disc * 0.2);
+        index.visit(PointStore.toE7(44.43), PointStore.toE7(26.10));
+        assertEquals(2 * disc, index.getExploredArea(), disc * 0.2);
+        assertTrue(index.getRegionCount() >= 2);
+    }
+
+    @Test
+    public void tracesOnlyChangedRegions() {
+        PointStore points = new PointStore();
+        points.add(44.43, 26.10);
+        points.add(45.43, 26.10);
+        CoverageIndex index = new CoverageIndex(new MemoryExploredProvider(points));
+        index.getExploredArea();
+        int traced = index.getTracedCount();
+        assertEquals(index.getRegionCount(), traced);
+
+        index.getExploredArea();
+        assertEquals(traced, index.getTracedCount());
+        // a point in the middle of a region changes only that region
+        double worldSize = MercatorProjection.worldSize(CoverageIndex.ZOOM);
+        int regionX = TileBucketIndex.tileX(26.10, CoverageIndex.ZOOM);
+        int regionY = TileBucketIndex.tileY(45.43, CoverageIndex.ZOOM);
+        double latitude = MercatorProjection.latitude((regionY + 0.5) * SIZE / worldSize);
+        double longitude = (regionX + 0.5) * SIZE / worldSize * 360 - 180;
+        index.visit(PointStore.toE7(latitude), PointStore.toE7(longitude));
+        index.getExploredArea();
+        assertEquals(traced + 1, index.getTracedCount());
+    }
+
+    @Test
+    public void drawsTilesAtAnyZoom() {
+        double latitude = 44.43;
+        double longitude = 26.10;
+        PointStore points = new PointStore();
+        points.add(latitude, longitude);
+        CoverageIndex index = new CoverageIndex(new MemoryExploredProvider(points));
+        PolygonRasterizer rasterizer = new PolygonRasterizer(SIZE);
+        for (int zoom = 4; zoom <= 20; zoom += 4) {
+            int tileX = TileBucketIndex.tileX(longitude, zoom);
+            int tileY = TileBucketIndex.tileY(latitude, zoom);
+            rasterizer.begin();
+            assertTrue(index.addTo(rasterizer, tileX, tileY, zoom));
+            byte[] mask = rasterizer.finish();
+            double worldSize = MercatorProjection.worldSize(zoom);
+            int x = (int) (MercatorProjection.worldX(longitude) * worldSize) - tileX * SIZE;
+            int y = (int) (MercatorProjection.worldY(latitude) * worldSize) - tileY * SIZE;
+            assertTrue("zoom " + zoom, (mask[y * SIZE + x] & 0xff) < 255);
+
+            // two regions away, regions are tiles of the coverage zoom level
+            int away = 2 << Math.max(0, zoom - CoverageIndex.ZOOM);
+            rasterizer.begin();
+            assertTrue(!index.addTo(rasterizer, tileX + away, tileY, zoom));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageOutlineTest {
+    private static final int SIZE = 32;
+
+    private static long[] cover(int fromX, int fromY, int toX, int toY) {
+        long[] cells = new long[SIZE * SIZE / 64];
+        for (int y = fromY; y < toY; y++) {
+            for (int x = fromX; x < toX; x++) {
+                CoverageOutline.cover(cells, SIZE, x, y);
+            }
+        }
+        return cells;
+    }
+
+    private static double area(List<float[]> rings) {
+        double area = 0;
+        for (float[] ring : rings) {
+            area += CoverageOutline.area(ring);
+        }
+        return area;
+    }
+
+    @Test
+    public void tracesBlockWithHole() {
+        long[] cells = cover(4, 4, 9, 9);
+        cells[(6 * SIZE + 6) >>> 6] &= ~(1L << (6 * SIZE + 6));
+        assertTrue(CoverageOutline.isCovered(cells, SIZE, 4, 4));
+        assertTrue(!CoverageOutline.isCovered(cells, SIZE, 6, 6));
+
+        List<float[]> rings = CoverageOutline.trace(cells, SIZE);
+        assertEquals(2, rings.size());
+        // the outline clockwise, the hole counterclockwise
+        assertEquals(25, CoverageOutline.area(rings.get(0)), 0);
+        assertEquals(-1, CoverageOutline.area(rings.get(1)), 0);
+        assertEquals(4 * 2, rings.get(0).length);
+    }
+
+    @Test
+    public void simplifiesDiscIntoSlopes() {
+        long[] cells = new long[SIZE * SIZE / 64];
+        int covered = 0;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                double dx = x + 0.5 - 16;
+                double dy = y + 0.5 - 16;
+                if (dx * dx + dy * dy <= 10 * 10 && CoverageOutline.cover(cells, SIZE, x, y)) {
+                    covered++;
+                }
+            }
+        }
+        List<float[]> rings = CoverageOutline.trace(cells, SIZE);
+        assertEquals(1, rings.size());
+        // far fewer corners than the staircase, about the same area
+        assertTrue(rings.get(0).length / 2 < 40);
+        assertEquals(covered, area(rings), covered * 0.05);
+    }
+
+    @Test
+    public void keepsCornersOnTheGridBorder() {
+        List<float[]> rings = CoverageOutline.trace(cover(0, 10, 20, 14), SIZE);
+        assertEquals(1, rings.size());
+        float[] ring = rings.get(0);
+        int border = 0;
+        for (int i = 0; i < ring.length; i += 2) {
+            if (ring[i] == 0) {
+                border++;
+            }
+        }
+        assertEquals(2, border);
+        assertEquals(80, area(rings), 0);
+    }
+
+    @Test
+    public void fillsRingsWithAntialiasedEdges() {
+        int size = ExploredTileProvider.TILE_SIZE;
+        PolygonRasterizer rasterizer = new PolygonRasterizer(size);
+        rasterizer.begin();
+        List<float[]> rings = CoverageOutline.trace(cover(4, 4, 9, 9), SIZE);
+        // cells of 8 pixels, offset by half a pixel
+        rasterizer.addRing(rings.get(0), 8, 0.5, 0);
+        byte[] mask = rasterizer.finish();
+
+        assertEquals(255, mask[0] & 0xff);
+        assertEquals(0, mask[40 * size + 50] & 0xff);
+        // the left edge covers half of its pixels
+        assertEquals(128, mask[40 * size + 32] & 0xff, 1);
+        assertEquals(255, mask[40 * size + 31] & 0xff);
+        assertEquals(255, mask[72 * size + 50] & 0xff);
+    }
+}
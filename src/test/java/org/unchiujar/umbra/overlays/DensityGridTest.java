@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+import org.unchiujar.umbra2.backend.PointStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DensityGridTest {
+    private static final int SIZE = ExploredTileProvider.TILE_SIZE;
+
+    private static int[] binsOf(DensityGrid grid, double latitude, double longitude, int zoom) {
+        int[] bins = new int[DensityGrid.BINS * DensityGrid.BINS];
+        grid.copyBins(TileBucketIndex.tileX(longitude, zoom), TileBucketIndex.tileY(latitude, zoom),
+                zoom, bins);
+        return bins;
+    }
+
+    private static int total(int[] bins) {
+        int total = 0;
+        for (int count : bins) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Test
+    public void countsLoadedAndNewPointsAtEveryZoom() {
+        PointStore points = new PointStore();
+        points.add(44.43, 26.10);
+        points.add(44.4301, 26.1001);
+        DensityGrid grid = new DensityGrid(new MemoryExploredProvider(points));
+        // ignored before loading, the provider already contains it
+        grid.visit(PointStore.toE7(44.43), PointStore.toE7(26.10));
+
+        for (int zoom = 0; zoom <= DensityGrid.MAX_ZOOM; zoom++) {
+            assertEquals(2, total(binsOf(grid, 44.43, 26.10, zoom)));
+        }
+        grid.visit(PointStore.toE7(44.44), PointStore.toE7(26.11));
+        for (int zoom = 0; zoom <= DensityGrid.MAX_ZOOM; zoom++) {
+            assertEquals(3, total(binsOf(grid, 44.43, 26.10, zoom)));
+        }
+        // the two close points share a bin at the lowest zoom
+        int[] bins = binsOf(grid, 44.43, 26.10, 0);
+        int max = grid.copyBins(0, 0, 0, bins);
+        assertEquals(3, max);
+        assertEquals(0, grid.copyBins(0, 0, 1, bins));
+    }
+
+    @Test
+    public void rendersDensestBinsWithTheLastColour() {
+        int[] bins = new int[DensityGrid.BINS * DensityGrid.BINS];
+        bins[0] = 1;
+        bins[DensityGrid.BINS + 1] = 100;
+        byte[] indexes = new byte[SIZE * SIZE];
+        DensityGrid.render(bins, 100, indexes, SIZE);
+        int binSize = SIZE / DensityGrid.BINS;
+        assertEquals(255, indexes[binSize * SIZE + binSize] & 0xff);
+        int sparse = indexes[0] & 0xff;
+        assertEquals(sparse, indexes[(binSize - 1) * SIZE + binSize - 1] & 0xff);
+        assertTrue(sparse > 1 && sparse < 255);
+        assertEquals(0, indexes[SIZE - 1]);
+
+        int[] palette = DensityGrid.palette(135);
+        assertEquals(135 << 24, palette[0]);
+        // opaque red for the densest bins
+        assertEquals(0xe6ff0000, palette[255]);
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DistanceFieldRasterizerTest {
+    private static final int SIZE = 128;
+    private static final int SHADE = 170;
+    private static final int TILE_X = 3;
+    private static final int TILE_Y = 9;
+
+    private static void assertMatchesNearestDiscs(int[] xs, int[] ys, int radius, int passes) {
+        byte[] discs = new byte[SIZE * SIZE];
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(discs, TILE_X, TILE_Y, 10, radius, passes, SHADE);
+        rasterizer.fill(255);
+        rasterizer.setNearest(true);
+
+        byte[] field = new byte[SIZE * SIZE];
+        DistanceFieldRasterizer distance = new DistanceFieldRasterizer(SIZE);
+        distance.begin(field, TILE_X, TILE_Y, radius, passes, SHADE);
+        for (int i = 0; i < field.length; i++) {
+            field[i] = (byte) 255;
+        }
+        for (int i = 0; i < xs.length; i++) {
+            rasterizer.visitPixel(xs[i], ys[i]);
+            distance.visitPixel(xs[i], ys[i]);
+        }
+        distance.finish();
+
+        // the falloff is interpolated between quarters of a pixel
+        for (int i = 0; i < field.length; i++) {
+            assertEquals("pixel " + i, discs[i] & 0xff, field[i] & 0xff, 3);
+        }
+    }
+
+    @Test
+    public void matchesNearestDiscOfScatteredPoints() {
+        Random random = new Random(7);
+        int[] xs = new int[300];
+        int[] ys = new int[300];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = TILE_X * SIZE - 30 + random.nextInt(SIZE + 60);
+            ys[i] = TILE_Y * SIZE - 30 + random.nextInt(SIZE + 60);
+        }
+        assertMatchesNearestDiscs(xs, ys, 9, 3);
+    }
+
+    @Test
+    public void matchesDiscsWiderThanTheTile() {
+        int[] xs = {TILE_X * SIZE - 150, TILE_X * SIZE + 200, TILE_X * SIZE + 64};
+        int[] ys = {TILE_Y * SIZE + 20, TILE_Y * SIZE + 100, TILE_Y * SIZE - 190};
+        assertMatchesNearestDiscs(xs, ys, 200, 12);
+    }
+
+    @Test
+    public void leavesFogWithoutPoints() {
+        byte[] field = new byte[SIZE * SIZE];
+        for (int i = 0; i < field.length; i++) {
+            field[i] = (byte) 255;
+        }
+        DistanceFieldRasterizer distance = new DistanceFieldRasterizer(SIZE);
+        distance.begin(field, TILE_X, TILE_Y, 10, 3, SHADE);
+        // out of reach of the tile
+        distance.visitPixel(TILE_X * SIZE - 12, TILE_Y * SIZE);
+        distance.finish();
+        for (byte value : field) {
+            assertEquals(255, value & 0xff);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FogRasterizerTest {
+    private static final int SIZE = 128;
+    private static final int FOG = 135;
+    private static final int SHADE = 170;
+
+    private static int alpha(byte[] mask, int x, int y) {
+        return mask[y * SIZE + x] & 0xff;
+    }
+
+    @Test
+    public void fillsTileWithFog() {
+        byte[] mask = new byte[SIZE * SIZE];
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(mask, 0, 0, 0, 10, 1, SHADE);
+        rasterizer.fill(FOG);
+        for (byte value : mask) {
+            assertEquals(FOG, value & 0xff);
+        }
+    }
+
+    @Test
+    public void discKeepsShadeOfFogPerPass() {
+        byte[] mask = new byte[SIZE * SIZE];
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(mask, 0, 0, 0, 20, 3, SHADE);
+        rasterizer.fill(FOG);
+        rasterizer.drawDisc(64, 64);
+
+        // the center is covered by every pass
+        int expected = (int) Math.round(FOG * Math.pow(SHADE / 255d, 3));
+        assertEquals(expected, alpha(mask, 64, 64), 1);
+        // outside the widest pass the fog is untouched
+        assertEquals(FOG, alpha(mask, 64 + 22, 64));
+        assertEquals(FOG, alpha(mask, 0, 0));
+        // the falloff is symmetric around the corner of the center pixel
+        assertEquals(alpha(mask, 70, 64), alpha(mask, 57, 64));
+        assertEquals(alpha(mask, 64, 70), alpha(mask, 64, 57));
+        // and does not get darker towards the center
+        for (int x = 64; x < 86; x++) {
+            assertTrue(alpha(mask, x, 64) <= alpha(mask, x + 1, 64));
+        }
+    }
+
+    @Test
+    public void clipsDiscsCrossingTheTileEdge() {
+        byte[] mask = new byte[SIZE * SIZE];
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(mask, 0, 0, 0, 300, 1, SHADE);
+        rasterizer.fill(FOG);
+        rasterizer.drawDisc(-5, 130);
+        assertTrue(alpha(mask, 0, 127) < FOG);
+
+        rasterizer.begin(mask, 0, 0, 0, 20, 1, SHADE);
+        rasterizer.fill(FOG);
+        rasterizer.drawDisc(140, -10);
+        assertTrue(alpha(mask, 127, 0) < FOG);
+        rasterizer.drawDisc(500, 500);
+        assertEquals(FOG, alpha(mask, 127, 127));
+    }
+
+    @Test
+    public void projectsPointsOnTheirTile() {
+        int zoom = 16;
+        double latitude = 44.43;
+        double longitude = 26.10;
+        int tileX = TileBucketIndex.tileX(longitude, zoom);
+        int tileY = TileBucketIndex.tileY(latitude, zoom);
+
+        byte[] mask = new byte[SIZE * SIZE];
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(mask, tileX, tileY, zoom, 5, 1, SHADE);
+        rasterizer.fill(FOG);
+        rasterizer.drawPoint(latitude, longitude);
+
+        double worldSize = (double) SIZE * (1 << zoom);
+        int x = (int) (MercatorProjection.worldX(longitude) * worldSize) - tileX * SIZE;
+        int y = (int) (MercatorProjection.worldY(latitude) * worldSize) - tileY * SIZE;
+        assertTrue(alpha(mask, x, y) < FOG);
+        // the neighbouring tile only sees the disc if the point is close to the edge
+        byte[] neighbour = new byte[SIZE * SIZE];
+        rasterizer.begin(neighbour, tileX + 2, tileY, zoom, 5, 1, SHADE);
+        rasterizer.fill(FOG);
+        rasterizer.drawPoint(latitude, longitude);
+        for (byte value : neighbour) {
+            assertEquals(FOG, value & 0xff);
+        }
+    }
+
+    @Test
+    public void blendsMaskOverItself() {
+        byte[] mask = {0, (byte) 255, (byte) FOG};
+        FogRasterizer.blend(mask, FOG);
+        assertEquals(0, mask[0] & 0xff);
+        assertEquals(255, mask[1] & 0xff);
+        // source FOG * FOG / 255 over destination FOG
+        int source = Math.round(FOG * FOG / 255f);
+        assertEquals(source + Math.round(FOG * (255 - source) / 255f), mask[2] & 0xff, 1);
+    }
+
+    @Test
+    public void composesCoverageLikeFogDrawnWithItsAlpha() {
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        byte[] baked = new byte[SIZE * SIZE];
+        rasterizer.begin(baked, 0, 0, 0, 20, 3, SHADE);
+        rasterizer.fill(FOG);
+        rasterizer.drawDisc(64, 64);
+        FogRasterizer.blend(baked, FOG);
+
+        byte[] coverage = new byte[SIZE * SIZE];
+        rasterizer.begin(coverage, 0, 0, 0, 20, 3, SHADE);
+        rasterizer.fill(255);
+        rasterizer.drawDisc(64, 64);
+        FogRasterizer.compose(coverage, FOG);
+
+        for (int i = 0; i < coverage.length; i++) {
+            assertEquals(baked[i] & 0xff, coverage[i] & 0xff, 1);
+        }
+    }
+}
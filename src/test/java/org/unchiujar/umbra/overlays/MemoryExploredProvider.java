@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.unchiujar.umbra2.backend.ExploredProvider;
+import org.unchiujar.umbra2.backend.PointStore;
+import org.unchiujar.umbra2.backend.PointVisitor;
+import org.unchiujar.umbra2.location.ApproximateLocation;
+
+import java.util.List;
+
+/**
+ * Explored points kept in memory for the overlay tests, counting the region loads. Only the point
+ * visiting methods are supported.
+ */
+class MemoryExploredProvider implements ExploredProvider {
+    private final PointStore mPoints;
+    private int mLoads;
+
+    MemoryExploredProvider() {
+        this(new PointStore());
+    }
+
+    MemoryExploredProvider(PointStore points) {
+        mPoints = points;
+    }
+
+    PointStore getPoints() {
+        return mPoints;
+    }
+
+    /**
+     * @return the number of region loads
+     */
+    int getLoadCount() {
+        return mLoads;
+    }
+
+    @Override
+    public long insert(ApproximateLocation location) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(List<ApproximateLocation> locations) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteAll() {
+        mPoints.clear();
+    }
+
+    @Override
+    public List<ApproximateLocation> selectAll() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitAll(PointVisitor visitor) {
+        mPoints.forEach(visitor);
+    }
+
+    @Override
+    public List<ApproximateLocation> selectVisited(ApproximateLocation upperLeft,
+                                                   ApproximateLocation bottomRight) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitVisited(int southE7, int westE7, int northE7, int eastE7,
+                             PointVisitor visitor) {
+        mLoads++;
+        mPoints.forEachInBounds(southE7, westE7, northE7, eastE7, visitor);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+import org.unchiujar.umbra2.backend.PointStore;
+
+import static org.junit.Assert.assertEquals;
+
+public class MercatorProjectionTest {
+
+    @Test
+    public void projectsBatchLikeSinglePoints() {
+        double[][] points = {{44.43, 26.10}, {-33.86, 151.21}, {0, -180}, {85.05, 179.99}, {-89.9, 0}};
+        int[] latitudes = new int[points.length];
+        int[] longitudes = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitudes[i] = PointStore.toE7(points[i][0]);
+            longitudes[i] = PointStore.toE7(points[i][1]);
+        }
+        int[] xs = new int[points.length];
+        int[] ys = new int[points.length];
+        for (int zoom = 0; zoom <= ExploredTileProvider.MAX_ZOOM; zoom++) {
+            MercatorProjection.project(latitudes, longitudes, points.length, zoom, xs, ys);
+            for (int i = 0; i < points.length; i++) {
+                assertEquals(MercatorProjection.pixelX(PointStore.fromE7(longitudes[i]), zoom), xs[i]);
+                assertEquals(MercatorProjection.pixelY(PointStore.fromE7(latitudes[i]), zoom), ys[i]);
+                assertEquals(TileBucketIndex.tileX(PointStore.fromE7(longitudes[i]), zoom),
+                        Math.min(xs[i] / ExploredTileProvider.TILE_SIZE, (1 << zoom) - 1));
+            }
+        }
+    }
+
+    @Test
+    public void latitudeInvertsProjection() {
+        for (double latitude = -85; latitude <= 85; latitude += 5) {
+            assertEquals(latitude, MercatorProjection.latitude(MercatorProjection.worldY(latitude)), 1e-9);
+        }
+        assertEquals(0, MercatorProjection.latitude(0.5), 1e-9);
+        assertEquals(ExploredTileProvider.toLatitude(180 - 0.25 * 360), MercatorProjection.latitude(0.25), 0);
+    }
+}
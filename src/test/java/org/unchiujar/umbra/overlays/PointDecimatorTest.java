@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PointDecimatorTest {
+    private static final int SIZE = 128;
+    private static final int SHADE = 170;
+    private static final int TILE_X = 5;
+    private static final int TILE_Y = 7;
+
+    private static byte[] render(int[] xs, int[] ys, int radius, int passes, boolean decimate) {
+        byte[] mask = new byte[SIZE * SIZE];
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(mask, TILE_X, TILE_Y, 10, radius, passes, SHADE);
+        rasterizer.fill(255);
+        PointDecimator decimator = new PointDecimator(SIZE);
+        decimator.begin(TILE_X, TILE_Y, radius);
+        for (int i = 0; i < xs.length; i++) {
+            if (decimate) {
+                decimator.visitPixel(xs[i], ys[i]);
+            } else {
+                rasterizer.visitPixel(xs[i], ys[i]);
+            }
+        }
+        decimator.drawTo(rasterizer);
+        return mask;
+    }
+
+    @Test
+    public void pointsInTheSamePixelGiveTheSameFog() {
+        int[] xs = new int[5];
+        int[] ys = new int[5];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = TILE_X * SIZE + 60;
+            ys[i] = TILE_Y * SIZE + 70;
+        }
+        byte[] expected = render(xs, ys, 6, 1, false);
+        byte[] decimated = render(xs, ys, 6, 1, true);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i] & 0xff, decimated[i] & 0xff, 2);
+        }
+    }
+
+    @Test
+    public void drawsWalkedTrackWithinTolerance() {
+        // a walk along the tile, fixes a few pixels apart and crossing the tile edges
+        Random random = new Random(42);
+        int points = 5000;
+        int[] xs = new int[points];
+        int[] ys = new int[points];
+        for (int i = 0; i < points; i++) {
+            xs[i] = TILE_X * SIZE - 40 + i * (SIZE + 70) / points + random.nextInt(5);
+            ys[i] = TILE_Y * SIZE + 64 + random.nextInt(9) - 4;
+        }
+        int radius = 40;
+        byte[] expected = render(xs, ys, radius, 8, false);
+        byte[] decimated = render(xs, ys, radius, 8, true);
+
+        long error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            error += Math.abs((expected[i] & 0xff) - (decimated[i] & 0xff));
+        }
+        assertTrue("mean error " + (double) error / expected.length,
+                error < expected.length);
+
+        PointDecimator decimator = new PointDecimator(SIZE);
+        decimator.begin(TILE_X, TILE_Y, radius);
+        for (int i = 0; i < points; i++) {
+            decimator.visitPixel(xs[i], ys[i]);
+        }
+        assertEquals(points, decimator.getVisitedCount());
+        // the track covers a few hundred cells of radius / 16 pixels
+        FogRasterizer rasterizer = new FogRasterizer(SIZE);
+        rasterizer.begin(new byte[SIZE * SIZE], TILE_X, TILE_Y, 10, radius, 8, SHADE);
+        int drawn = decimator.drawTo(rasterizer);
+        assertTrue("drew " + drawn, drawn < points / 5);
+    }
+
+    @Test
+    public void ignoresPointsOutOfReach() {
+        PointDecimator decimator = new PointDecimator(SIZE);
+        decimator.begin(TILE_X, TILE_Y, 10);
+        decimator.visitPixel(TILE_X * SIZE - 12, TILE_Y * SIZE);
+        decimator.visitPixel(TILE_X * SIZE + SIZE + 11, TILE_Y * SIZE);
+        decimator.visitPixel(TILE_X * SIZE - 11, TILE_Y * SIZE + SIZE + 10);
+        assertEquals(1, decimator.getVisitedCount());
+    }
+}
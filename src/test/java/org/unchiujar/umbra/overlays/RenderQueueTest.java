@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class RenderQueueTest {
+    private static final int ZOOM = 16;
+
+    /**
+     * Keeps the submitted workers, run by the test.
+     */
+    private static class QueuedExecutor implements Executor {
+        private final List<Runnable> mWorkers = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable worker) {
+            mWorkers.add(worker);
+        }
+
+        void runAll() {
+            for (Runnable worker : mWorkers) {
+                worker.run();
+            }
+            mWorkers.clear();
+        }
+    }
+
+    private static Future<Integer> submit(RenderQueue queue, final List<Integer> order, final int x,
+                                          int y, int zoom) {
+        return queue.submit(x, y, zoom, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                order.add(x);
+                return x;
+            }
+        });
+    }
+
+    private static double longitude(double tileX, int zoom) {
+        return tileX / (1 << zoom) * 360 - 180;
+    }
+
+    private static double latitude(double tileY, int zoom) {
+        return MercatorProjection.latitude(tileY / (1 << zoom));
+    }
+
+    /**
+     * Viewport centred on the tile, spanning the tiles up to span tiles away.
+     */
+    private static void center(RenderQueue queue, double tileX, double tileY, int span) {
+        center(queue, tileX, tileY, span, ZOOM);
+    }
+
+    private static void center(RenderQueue queue, double tileX, double tileY, int span, int zoom) {
+        queue.setViewport(latitude(tileY, zoom), longitude(tileX, zoom), zoom,
+                latitude(tileY + span, zoom), longitude(tileX - span, zoom),
+                latitude(tileY - span, zoom), longitude(tileX + span, zoom));
+    }
+
+    @Test
+    public void rendersClosestTileFirst() throws Exception {
+        QueuedExecutor executor = new QueuedExecutor();
+        RenderQueue queue = new RenderQueue(executor);
+        center(queue, 1000.5, 2000.5, 5);
+        List<Integer> order = new ArrayList<Integer>();
+        for (int x = 996; x <= 1004; x++) {
+            submit(queue, order, x, 2000, ZOOM);
+        }
+        executor.runAll();
+
+        assertEquals(9, order.size());
+        assertEquals(1000, (int) order.get(0));
+        for (int i = 1; i < order.size(); i++) {
+            assertTrue(Math.abs(order.get(i) - 1000) >= Math.abs(order.get(i - 1) - 1000));
+        }
+        assertEquals(0, queue.getDepth());
+        assertEquals(9, queue.getRenderedCount());
+    }
+
+    @Test
+    public void cancelsTilesLeavingTheViewport() throws Exception {
+        QueuedExecutor executor = new QueuedExecutor();
+        RenderQueue queue = new RenderQueue(executor);
+        center(queue, 1000.5, 2000.5, 2);
+        List<Integer> order = new ArrayList<Integer>();
+        Future<Integer> near = submit(queue, order, 1001, 2000, ZOOM);
+        Future<Integer> far = submit(queue, order, 999, 2000, ZOOM);
+        assertEquals(2, queue.getDepth());
+
+        // fling east, the west tile is now more than the margin away
+        center(queue, 1005.5, 2000.5, 3);
+        executor.runAll();
+
+        assertTrue(far.isCancelled());
+        assertEquals(1001, (int) near.get());
+        assertEquals(1, order.size());
+        assertEquals(1, queue.getCancelledCount());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void cancelsTilesOfOtherZoomLevels() throws Exception {
+        QueuedExecutor executor = new QueuedExecutor();
+        RenderQueue queue = new RenderQueue(executor);
+        center(queue, 1000.5, 2000.5, 2);
+        List<Integer> order = new ArrayList<Integer>();
+        Future<Integer> old = submit(queue, order, 1000, 2000, ZOOM);
+
+        // zoom in on the same target
+        center(queue, 2001, 4001, 2, ZOOM + 1);
+        Future<Integer> current = submit(queue, order, 2001, 4001, ZOOM + 1);
+        // a late request of the previous zoom level does not cancel the current one
+        Future<Integer> late = submit(queue, order, 1001, 2000, ZOOM);
+        executor.runAll();
+
+        assertTrue(old.isCancelled());
+        assertTrue(late.isCancelled());
+        assertEquals(2001, (int) current.get());
+        assertEquals(1, order.size());
+        assertEquals(2, queue.getCancelledCount());
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+import org.unchiujar.umbra2.backend.PointStore;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TileBucketIndexTest {
+    private static final int ZOOM = 14;
+
+    private static void addRandom(PointStore points, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            points.add(45 + random.nextDouble() * 0.2d, 25 + random.nextDouble() * 0.2d);
+        }
+    }
+
+    private static void assertSameCounts(TileBucketIndex expected, TileBucketIndex actual) {
+        assertEquals(expected.size(), actual.size());
+        int x = TileBucketIndex.tileX(25.1d, ZOOM);
+        int y = TileBucketIndex.tileY(45.1d, ZOOM);
+        for (int tileX = x - 12; tileX <= x + 12; tileX++) {
+            for (int tileY = y - 12; tileY <= y + 12; tileY++) {
+                assertEquals(expected.count(tileX, tileY), actual.count(tileX, tileY));
+                assertEquals(expected.countAround(tileX, tileY, 1),
+                        actual.countAround(tileX, tileY, 1));
+            }
+        }
+    }
+
+    @Test
+    public void appendsAddedPoints() {
+        Random random = new Random(3);
+        PointStore points = new PointStore();
+        addRandom(points, random, 2000);
+        TileBucketIndex index = TileBucketIndex.build(points, ZOOM);
+        assertSame(index, index.updated(points));
+
+        addRandom(points, random, 100);
+        TileBucketIndex updated = index.updated(points);
+        assertSameCounts(TileBucketIndex.build(points, ZOOM), updated);
+
+        addRandom(points, random, 100);
+        updated = updated.updated(points);
+        assertSameCounts(TileBucketIndex.build(points, ZOOM), updated);
+    }
+
+    @Test
+    public void buildsAgainWhenStoreReplacedOrOverflowFull() {
+        Random random = new Random(5);
+        PointStore points = new PointStore();
+        addRandom(points, random, 100);
+        TileBucketIndex index = TileBucketIndex.build(points, ZOOM);
+
+        assertNull(index.updated(new PointStore()));
+        addRandom(points, random, TileBucketIndex.MAX_OVERFLOW + 1);
+        assertNull(index.updated(points));
+
+        index = TileBucketIndex.build(points, ZOOM);
+        points.clear();
+        assertNull(index.updated(points));
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TileEncoderTest {
+    private static final int SIZE = 128;
+
+    @Test
+    public void fastTilesDecodeToTheMaskAlpha() throws IOException {
+        byte[] mask = new byte[SIZE * SIZE];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = (byte) (i % 251);
+        }
+        byte[] data = TileEncoder.FAST.encode(mask, SIZE);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        assertEquals(SIZE, image.getWidth());
+        assertEquals(SIZE, image.getHeight());
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int argb = image.getRGB(x, y);
+                assertEquals(mask[y * SIZE + x] & 0xff, argb >>> 24);
+                assertEquals(0, argb & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    public void flatTilesAreShared() {
+        byte[] fogged = new byte[SIZE * SIZE];
+        for (int i = 0; i < fogged.length; i++) {
+            fogged[i] = (byte) 200;
+        }
+        long shared = TileEncoder.FAST.getSharedCount();
+        byte[] first = TileEncoder.FAST.encode(fogged, SIZE);
+        assertSame(first, TileEncoder.FAST.encode(fogged.clone(), SIZE));
+        assertSame(first, TileEncoder.FAST.flatTile(200, SIZE));
+        assertNotSame(first, TileEncoder.FAST.encode(new byte[SIZE * SIZE], SIZE));
+        assertEquals(shared + 2, TileEncoder.FAST.getSharedCount());
+    }
+
+    @Test
+    public void palettedTilesDecodeToThePaletteColours() throws IOException {
+        int[] palette = DensityGrid.palette(100);
+        byte[] indexes = new byte[SIZE * SIZE];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = (byte) (i / SIZE * 2);
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                TileEncoder.FAST.encode(indexes, SIZE, palette)));
+        for (int y = 0; y < SIZE; y++) {
+            assertEquals(palette[y * 2], image.getRGB(5, y));
+        }
+    }
+}
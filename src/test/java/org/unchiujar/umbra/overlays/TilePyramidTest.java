@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TilePyramidTest {
+    private static final int SIZE = 8;
+
+    @Test
+    public void keepsClearestPixelOfEachSquare() {
+        byte[] child = new byte[SIZE * SIZE];
+        for (int i = 0; i < child.length; i++) {
+            child[i] = (byte) 200;
+        }
+        child[3 * SIZE + 2] = 10;
+        byte[] parent = new byte[SIZE * SIZE];
+        // bottom right child
+        TilePyramid.downsample(child, 5, 7, parent, SIZE);
+        assertEquals(10, parent[(4 + 1) * SIZE + 4 + 1] & 0xff);
+        assertEquals(200, parent[4 * SIZE + 4] & 0xff);
+        assertEquals(200, parent[7 * SIZE + 7] & 0xff);
+        // other quarters untouched
+        assertEquals(0, parent[0]);
+        assertEquals(0, parent[3 * SIZE + 4]);
+    }
+
+    @Test
+    public void fillsQuarterOfMissingChildWithFog() {
+        byte[] parent = new byte[SIZE * SIZE];
+        TilePyramid.downsample(null, 0, 1, parent, SIZE);
+        for (int row = 0; row < SIZE; row++) {
+            for (int column = 0; column < SIZE; column++) {
+                int expected = row >= SIZE / 2 && column < SIZE / 2 ? 255 : 0;
+                assertEquals(expected, parent[row * SIZE + column] & 0xff);
+            }
+        }
+    }
+}
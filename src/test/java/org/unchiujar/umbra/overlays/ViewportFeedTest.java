@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * This file is part of Umbra.
+ *
+ *     Umbra is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Umbra is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Umbra.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Copyright (c) 2011 Vasile Jureschi <vasile.jureschi@gmail.com>.
+ *     All rights reserved. This program and the accompanying materials
+ *     are made available under the terms of the GNU Public License v3.0
+ *     which accompanies this distribution, and is available at
+ *
+ *    http://www.gnu.org/licenses/gpl-3.0.html
+ *
+ *     Contributors:
+ *        Vasile Jureschi <vasile.jureschi@gmail.com> - initial API and implementation
+ *        Yen-Liang, Shen - Simplified Chinese and Traditional Chinese translations
+ ******************************************************************************/
+
+package org.unchiujar.umbra2.overlays;
+
+import org.junit.Test;
+import org.unchiujar.umbra2.backend.PointStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ViewportFeedTest {
+
+    @Test
+    public void pointNotifiedAfterLoadIsNotAddedTwice() {
+        MemoryExploredProvider source = new MemoryExploredProvider();
+        ViewportFeed feed = new ViewportFeed(source);
+        feed.update(45, 25, 46, 26);
+        // added to the source, then loaded before the source notifies it
+        source.getPoints().add(44.2d, 25.5d);
+        PointStore points = feed.update(44, 25, 45, 26);
+        assertEquals(1, points.size());
+        feed.visit(PointStore.toE7(44.2d), PointStore.toE7(25.5d));
+        assertEquals(1, points.size());
+
+        feed.visit(PointStore.toE7(44.3d), PointStore.toE7(25.5d));
+        assertEquals(2, points.size());
+    }
+
+    @Test
+    public void reusesWorldViewAtLowZoom() {
+        MemoryExploredProvider source = new MemoryExploredProvider();
+        ViewportFeed feed = new ViewportFeed(source);
+        PointStore points = feed.update(-80, -170, 80, 170);
+        int loads = source.getLoadCount();
+        assertSame(points, feed.update(-70, -160, 70, 160));
+        assertEquals(loads, source.getLoadCount());
+    }
+}